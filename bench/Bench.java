@@ -0,0 +1,101 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Minimal microbenchmark harness: time-boxed warmup and measurement on
+ * one or more threads, reporting throughput and bytes allocated per op
+ * (from the per-thread allocation counter, like JMH's gc profiler).
+ *
+ * An Op returns a long that is folded into a checksum, so the JIT cannot
+ * drop the work as dead code.
+ */
+final class Bench {
+    interface Op {
+        long run() throws Exception;
+    }
+
+    static final class Result {
+        final String name;
+        final int threads;
+        final double opsPerSec;
+        final double bytesPerOp;
+
+        Result(String name, int threads, double opsPerSec, double bytesPerOp) {
+            this.name = name;
+            this.threads = threads;
+            this.opsPerSec = opsPerSec;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-40s %3d thr %,14.0f ops/s %10.1f B/op", name, threads, opsPerSec, bytesPerOp);
+        }
+    }
+
+    static long warmupMillis = Long.getLong("bench.warmup", 1000);
+    static long measureMillis = Long.getLong("bench.measure", 2000);
+
+    private static volatile long sink;
+
+    private Bench() {}
+
+    static Result run(String name, Op op) throws InterruptedException {
+        return run(name, 1, op);
+    }
+
+    static Result run(String name, int threads, Op op) throws InterruptedException {
+        long[] ops = new long[threads];
+        long[] allocated = new long[threads];
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long[] window = new long[1];
+        for (int t = 0; t < threads; t++) {
+            int slot = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    long checksum = 0;
+                    long warmEnd = System.nanoTime() + warmupMillis * 1_000_000;
+                    while (System.nanoTime() < warmEnd) {
+                        for (int i = 0; i < 256; i++) checksum += op.run();
+                    }
+                    ready.countDown();
+                    go.await();
+                    long end = System.nanoTime() + window[0];
+                    long alloc = allocatedBytes();
+                    long n = 0;
+                    while (System.nanoTime() < end) {
+                        for (int i = 0; i < 256; i++) checksum += op.run();
+                        n += 256;
+                    }
+                    allocated[slot] = allocatedBytes() - alloc;
+                    ops[slot] = n;
+                    sink += checksum;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, name + "-" + t);
+        }
+        window[0] = measureMillis * 1_000_000;
+        for (Thread w : workers) w.start();
+        ready.await();
+        go.countDown();
+        for (Thread w : workers) w.join();
+
+        long totalOps = 0, totalBytes = 0;
+        for (int t = 0; t < threads; t++) {
+            totalOps += ops[t];
+            totalBytes += allocated[t];
+        }
+        Result r = new Result(name, threads, totalOps * 1000.0 / measureMillis,
+                totalOps == 0 ? 0 : (double) totalBytes / totalOps);
+        System.out.println(r);
+        return r;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().threadId());
+    }
+}
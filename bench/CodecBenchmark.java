@@ -0,0 +1,34 @@
+/**
+ * Binary codec vs Java serialization: encode and decode throughput,
+ * allocation, and bytes on the wire for typical messages.
+ *
+ *   java CodecBenchmark
+ */
+public class CodecBenchmark {
+    public static void main(String[] args) throws Exception {
+        MessageCodec.setJavaSerialization(true); // so Java frames decode; binary ones are encoded explicitly
+        Message[] samples = {
+                new Message("CHAT", "hey, are you around later?", "Client12", "Client345"),
+                new Message("CONNECT_REQUEST", "Requesting chat", "Client7", "Client8"),
+                new Message("SYSTEM", "/list", "Client42", "Server"),
+        };
+
+        System.out.println("bytes per message (frame incl. 4-byte length):");
+        for (Message m : samples) {
+            System.out.printf("  %-16s binary=%4d java=%4d%n", m.getType(),
+                    MessageCodec.encodeBinary(m).length, MessageCodec.encodeJava(m).length);
+        }
+
+        for (Message m : samples) {
+            byte[] binary = MessageCodec.encodeBinary(m);
+            byte[] java = MessageCodec.encodeJava(m);
+            int hdr = MessageCodec.HEADER_BYTES;
+            Bench.run("encode binary " + m.getType(), () -> MessageCodec.encodeBinary(m).length);
+            Bench.run("encode java   " + m.getType(), () -> MessageCodec.encodeJava(m).length);
+            Bench.run("decode binary " + m.getType(),
+                    () -> MessageCodec.decode(binary, hdr, binary.length - hdr).getText().length());
+            Bench.run("decode java   " + m.getType(),
+                    () -> MessageCodec.decode(java, hdr, java.length - hdr).getText().length());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Bandwidth saved vs CPU spent by frame compression, over a synthetic
+ * stream of chat traffic as one connection would carry it (chat lines of
+ * a few common words between a few hundred clients, some longer lines,
+ * server notices), in both payload formats:
+ *
+ *   - none: frames as they are;
+ *   - per frame: each frame deflated on its own, what compressing a
+ *     message without a shared context gets;
+ *   - stream: one sync-flushed deflate stream per connection, no dictionary;
+ *   - Compression at level 1 and 6, threshold 64, 32 (the defaults) and 0.
+ *
+ * Bytes are per frame on the wire, including the 4-byte length and flags;
+ * "first 100" is the average over a connection's first 100 frames, where
+ * the preset dictionary is all the context there is. Times are per frame,
+ * each side, single-threaded.
+ *
+ *   java CompressionBenchmark [frames]
+ */
+public class CompressionBenchmark {
+    private static final String[] WORDS = (
+            "I you the to a and it is that what do we of in for have be on not are this with just can so "
+            + "but my me your was like know if at it's get don't all about no yes ok okay lol go how "
+            + "think now good see will there time one out up when they then too really right going "
+            + "thanks sure later today tomorrow work meeting lunch call back soon sounds great haha "
+            + "where who why which would could should did been was were has had said come make want "
+            + "need let's here still already maybe probably tonight weekend morning home office").split(" ");
+
+    private interface Scheme {
+        byte[] compress(byte[] frame);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        List<Message> traffic = traffic(frames, new Random(42));
+
+        List<String> rows = new ArrayList<>();
+        for (boolean java : new boolean[] {false, true}) {
+            String format = java ? "java" : "binary";
+            byte[][] plain = new byte[traffic.size()][];
+            for (int i = 0; i < plain.length; i++) {
+                Message m = traffic.get(i);
+                plain[i] = java ? MessageCodec.encodeJava(m) : MessageCodec.encodeBinary(m);
+            }
+            rows.add(run(format, "none", plain, () -> f -> f, false));
+            rows.add(run(format, "per frame, level 6", plain, CompressionBenchmark::perFrame, false));
+            rows.add(run(format, "stream, no dictionary", plain, CompressionBenchmark::stream, false));
+            rows.add(run(format, "Compression level 1, min 64", plain, () -> compression(1, 64), true));
+            rows.add(run(format, "Compression level 6, min 32", plain, () -> compression(6, 32), true));
+            rows.add(run(format, "Compression level 1, min 32", plain, () -> compression(1, 32), true));
+            rows.add(run(format, "Compression level 1, min 0", plain, () -> compression(1, 0), true));
+        }
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-7s %-28s %9s %7s %10s %12s %12s",
+                "format", "scheme", "B/frame", "ratio", "first 100", "deflate ns", "inflate ns"));
+        for (String row : rows) System.out.println(row);
+    }
+
+    private interface Factory {
+        Scheme create();
+    }
+
+    /**
+     * Rounds of a fresh connection each; bytes from the last round, times
+     * the best of the measured rounds. Compression rows are also inflated
+     * back and checked.
+     */
+    private static String run(String format, String name, byte[][] plain, Factory factory, boolean inflate)
+            throws IOException {
+        long plainBytes = 0;
+        for (byte[] f : plain) plainBytes += f.length;
+        long wire = 0;
+        long first = 0;
+        long bestDeflate = Long.MAX_VALUE;
+        long bestInflate = Long.MAX_VALUE;
+        for (int round = 0; round < 8; round++) {
+            Scheme s = factory.create();
+            byte[][] sent = new byte[plain.length][];
+            long t0 = System.nanoTime();
+            for (int i = 0; i < plain.length; i++) sent[i] = s.compress(plain[i]);
+            long t1 = System.nanoTime();
+            wire = 0;
+            first = 0;
+            for (int i = 0; i < sent.length; i++) {
+                wire += sent[i].length;
+                if (i < 100) first += sent[i].length;
+            }
+            if (inflate) {
+                Compression reader = new Compression(Compression.LEVEL, 0, false);
+                long t2 = System.nanoTime();
+                for (int i = 0; i < sent.length; i++) {
+                    byte[] f = sent[i];
+                    int len = f.length - MessageCodec.HEADER_BYTES;
+                    byte[] back = Compression.isCompressed(f, MessageCodec.HEADER_BYTES, len)
+                            ? reader.inflate(f, MessageCodec.HEADER_BYTES, len) : f;
+                    if (round == 0 && !Arrays.equals(back, plain[i])) throw new IOException("frame " + i + " differs");
+                }
+                long t3 = System.nanoTime();
+                if (round >= 3) bestInflate = Math.min(bestInflate, t3 - t2);
+            }
+            if (round >= 3) bestDeflate = Math.min(bestDeflate, t1 - t0);
+        }
+        String row = String.format(Locale.ROOT, "%-7s %-28s %9.1f %6.1f%% %10.1f %12.0f %12s", format, name,
+                wire / (double) plain.length, 100.0 * wire / plainBytes, first / 100.0,
+                bestDeflate / (double) plain.length,
+                inflate ? String.format(Locale.ROOT, "%.0f", bestInflate / (double) plain.length) : "-");
+        System.err.println(row);
+        return row;
+    }
+
+    private static Scheme compression(int level, int threshold) {
+        Compression c = new Compression(level, threshold, false);
+        return c::compress;
+    }
+
+    private static Scheme perFrame() {
+        Deflater d = new Deflater(6, true);
+        byte[] out = new byte[MessageCodec.MAX_FRAME];
+        return frame -> {
+            d.reset();
+            d.setInput(frame, MessageCodec.HEADER_BYTES + 1, frame.length - MessageCodec.HEADER_BYTES - 1);
+            d.finish();
+            int n = d.deflate(out);
+            return Arrays.copyOf(out, MessageCodec.HEADER_BYTES + 1 + n);
+        };
+    }
+
+    private static Scheme stream() {
+        Deflater d = new Deflater(1, true);
+        byte[] out = new byte[MessageCodec.MAX_FRAME];
+        return frame -> {
+            d.setInput(frame, MessageCodec.HEADER_BYTES + 1, frame.length - MessageCodec.HEADER_BYTES - 1);
+            int n = d.deflate(out, 0, out.length, Deflater.SYNC_FLUSH);
+            return Arrays.copyOf(out, MessageCodec.HEADER_BYTES + 1 + n - 4);
+        };
+    }
+
+    /** What one client's connection receives: mostly short chat lines, some long ones, a few notices. */
+    private static List<Message> traffic(int n, Random random) {
+        List<Message> out = new ArrayList<>(n);
+        long now = 1_700_000_000_000L;
+        for (int i = 0; i < n; i++) {
+            now += random.nextInt(2000);
+            String to = "Client" + 7;
+            String from = "Client" + (1 + random.nextInt(300));
+            int r = random.nextInt(100);
+            Message m;
+            if (r < 3) {
+                m = new Message("SYSTEM", from + " is offline; message saved for delivery", "Server", to);
+            } else if (r < 5) {
+                m = new Message("CONNECT_REQUEST", "Requesting chat", from, to);
+            } else {
+                int words = r < 90 ? 2 + random.nextInt(10) : 20 + random.nextInt(60);
+                StringBuilder sb = new StringBuilder();
+                for (int w = 0; w < words; w++) {
+                    if (w > 0) sb.append(' ');
+                    // Skewed toward the front of the list, like word frequencies
+                    double u = random.nextDouble();
+                    sb.append(WORDS[(int) (u * u * WORDS.length)]);
+                }
+                m = new Message("CHAT", sb.toString(), from, to);
+            }
+            out.add(new Message(m.getType(), m.getText(), m.getFrom(), m.getTo(), new java.util.Date(now)));
+        }
+        return out;
+    }
+}
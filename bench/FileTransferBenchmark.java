@@ -0,0 +1,200 @@
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * File transfer through the server, in both server modes: one client
+ * streams FILE_CHUNKs to another under FileTransfer's credit window, while
+ * a third sends the receiver a CHAT every few milliseconds. Reports the
+ * transfer rate and the chat latency to the receiver with and without a
+ * transfer under way, which is what the bulk lane is for: chat frames are
+ * queued ahead of chunks, so they wait behind a few chunks, not the window.
+ *
+ *   java FileTransferBenchmark [megabytes] [--interval=MS]
+ */
+public class FileTransferBenchmark {
+    private static final int CHUNKS_PER_WINDOW = FileTransfer.WINDOW / FileTransfer.CHUNK_SIZE;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = 200;
+        int intervalMs = 5;
+        for (String arg : args) {
+            if (arg.startsWith("--interval=")) intervalMs = Integer.parseInt(arg.substring("--interval=".length()));
+            else megabytes = Integer.parseInt(arg);
+        }
+        Log.setLevel(Log.Level.WARN);
+        long bytes = (long) megabytes << 20;
+
+        List<String> rows = new ArrayList<>();
+        for (boolean nio : new boolean[] {false, true}) {
+            String server = nio ? "nio" : "blocking";
+            try (Closeable s = start(nio)) {
+                Run warmup = new Run(port(s), intervalMs);
+                warmup.transfer(bytes / 4);
+                warmup.close();
+
+                Run run = new Run(port(s), intervalMs);
+                LatencyHistogram idle = run.chatOnly(2);
+                long start = System.nanoTime();
+                LatencyHistogram busy = run.transfer(bytes);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                run.close();
+                rows.add(String.format(Locale.ROOT, "%-9s %,8.1f MB/s   chat idle p50 %6.3f p99 %6.3f ms"
+                                + "   during transfer p50 %6.3f p99 %6.3f ms", server, bytes / 1e6 / seconds,
+                        idle.percentile(0.5) / 1e6, idle.percentile(0.99) / 1e6,
+                        busy.percentile(0.5) / 1e6, busy.percentile(0.99) / 1e6));
+                System.err.println(rows.get(rows.size() - 1));
+            }
+        }
+        System.out.println();
+        for (String row : rows) System.out.println(row);
+        System.exit(0);
+    }
+
+    private static Closeable start(boolean nio) throws IOException {
+        if (nio) {
+            NioServer s = new NioServer(0, 1, null);
+            s.start();
+            return s;
+        }
+        ServerSocket ss = new ServerSocket(0);
+        Thread t = new Thread(() -> {
+            try { Server.serve(ss, false); } catch (IOException ignored) {}
+        });
+        t.setDaemon(true);
+        t.start();
+        return ss;
+    }
+
+    private static int port(Closeable server) {
+        return server instanceof NioServer ? ((NioServer) server).getPort() : ((ServerSocket) server).getLocalPort();
+    }
+
+    /** Sender, receiver and chatter connected to one server. */
+    private static final class Run {
+        final Peer sender;
+        final Peer receiver;
+        final Peer chatter;
+        final int intervalMs;
+        final Semaphore credit = new Semaphore(0);        // in chunks
+        final AtomicLong received = new AtomicLong();
+        volatile LatencyHistogram chats = new LatencyHistogram();
+
+        Run(int port, int intervalMs) throws IOException {
+            this.intervalMs = intervalMs;
+            sender = new Peer(port, "sender");
+            receiver = new Peer(port, "receiver");
+            chatter = new Peer(port, "chatter");
+            thread(this::senderReads);
+            thread(this::receiverReads);
+        }
+
+        /** Chat to the receiver for a while, with nothing else going on. */
+        LatencyHistogram chatOnly(int seconds) throws Exception {
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            LatencyHistogram h = chats = new LatencyHistogram();
+            while (System.nanoTime() < end) chat();
+            return h;
+        }
+
+        /** Send bytes from sender to receiver, chatting to the receiver meanwhile. */
+        LatencyHistogram transfer(long bytes) throws Exception {
+            LatencyHistogram h = chats = new LatencyHistogram();
+            received.set(0);
+            credit.release(CHUNKS_PER_WINDOW);
+            Thread chatting = thread(() -> {
+                while (received.get() < bytes) chat();
+            });
+            byte[] data = new byte[FileTransfer.CHUNK_SIZE];
+            for (long offset = 0; offset < bytes; offset += data.length) {
+                if (!credit.tryAcquire(5, TimeUnit.SECONDS)) throw new IOException("transfer stalled");
+                sender.send(new Message("FILE_CHUNK", "1 " + offset, sender.id, receiver.id, data));
+            }
+            chatting.join(TimeUnit.SECONDS.toMillis(30));
+            credit.drainPermits();
+            return h;
+        }
+
+        private void chat() {
+            try {
+                chatter.send(new Message("CHAT", Long.toString(System.nanoTime()), chatter.id, receiver.id));
+                Thread.sleep(intervalMs);
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void senderReads() {
+            try {
+                while (true) {
+                    Message m = MessageCodec.read(sender.in);
+                    if ("FILE_CREDIT".equals(m.getType())) credit.release(CHUNKS_PER_WINDOW / 2);
+                }
+            } catch (IOException ignored) {
+                // closed
+            }
+        }
+
+        /** Counts chunk bytes, grants credit every half window, and times chats. */
+        private void receiverReads() {
+            try {
+                int unacked = 0;
+                while (true) {
+                    Message m = MessageCodec.read(receiver.in);
+                    if ("CHAT".equals(m.getType())) {
+                        chats.record(System.nanoTime() - Long.parseLong(m.getText()));
+                    } else if ("FILE_CHUNK".equals(m.getType())) {
+                        received.addAndGet(m.getData().length);
+                        if (++unacked == CHUNKS_PER_WINDOW / 2) {
+                            receiver.send(new Message("FILE_CREDIT", "1 " + FileTransfer.WINDOW / 2, receiver.id, sender.id));
+                            unacked = 0;
+                        }
+                    }
+                }
+            } catch (IOException ignored) {
+                // closed
+            }
+        }
+
+        void close() throws IOException {
+            sender.socket.close();
+            receiver.socket.close();
+            chatter.socket.close();
+        }
+    }
+
+    private static final class Peer {
+        final Socket socket;
+        final OutputStream out;
+        final DataInputStream in;
+        final String id;
+
+        Peer(int port, String name) throws IOException {
+            socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            MessageCodec.write(out, new Message("SYSTEM", name, "temp", "Server"));
+            out.flush();
+            id = MessageCodec.read(in).getTo();
+        }
+
+        synchronized void send(Message msg) throws IOException {
+            MessageCodec.write(out, msg);
+            out.flush();
+        }
+    }
+
+    private static Thread thread(Runnable r) {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Server hot paths in isolation, each at 1, 2, 4 .. maxThreads threads:
+ * forwardMessage dispatch per type, Message construction and codec
+ * round trips, client registry lookups, and the /list reply.
+ *
+ *   java HotPathBenchmark [maxThreads] [--save=baseline.tsv] [--compare=baseline.tsv]
+ *
+ * --save writes the results as a baseline (name, threads, ops/s, B/op);
+ * --compare prints each result next to the matching baseline entry so a
+ * change can be checked for throughput and allocation regressions.
+ */
+public class HotPathBenchmark {
+    private static final int REGISTERED = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        Path save = null, compare = null;
+        for (String arg : args) {
+            if (arg.startsWith("--save=")) save = Path.of(arg.substring("--save=".length()));
+            else if (arg.startsWith("--compare=")) compare = Path.of(arg.substring("--compare=".length()));
+            else maxThreads = Integer.parseInt(arg);
+        }
+        Log.setLevel(Log.Level.WARN);
+        List<Bench.Result> results = new ArrayList<>();
+
+        // ---- message construction and codec ----
+        Message chat = new Message("CHAT", "hey, are you around later?", "Client12", "Client345");
+        byte[] frame = MessageCodec.encode(chat);
+        int hdr = MessageCodec.HEADER_BYTES;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            // identityHashCode makes the Message (and its Date) escape, so it is really allocated
+            results.add(Bench.run("new Message", threads,
+                    () -> System.identityHashCode(new Message("CHAT", "hey", "Client12", "Client345"))));
+            results.add(Bench.run("encode CHAT", threads, () -> MessageCodec.encode(chat).length));
+            results.add(Bench.run("decode CHAT", threads,
+                    () -> MessageCodec.decode(frame, hdr, frame.length - hdr).getText().length()));
+        }
+
+        // ---- /list with a small table (the reply grows with the table) ----
+        StubConnection[] conns = new StubConnection[REGISTERED];
+        for (int i = 0; i < 100; i++) register(conns, i);
+        Message list = new Message("SYSTEM", "/list", "Client1", "Server");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            results.add(Bench.run("forward SYSTEM /list (100 clients)", threads, () -> {
+                Server.forwardMessage(list);
+                return conns[0].delivered;
+            }));
+        }
+
+        // ---- routing and lookups against a large table ----
+        for (int i = 100; i < REGISTERED; i++) register(conns, i);
+        Message[] chats = new Message[REGISTERED];
+        Message[] requests = new Message[REGISTERED];
+        Message[] misses = new Message[REGISTERED];
+        for (int i = 0; i < REGISTERED; i++) {
+            String from = conns[i].getClientId();
+            String to = conns[(i + 1) % REGISTERED].getClientId();
+            chats[i] = new Message("CHAT", "hey, are you around later?", from, to);
+            requests[i] = new Message("CONNECT_REQUEST", "Requesting chat", from, to);
+            misses[i] = new Message("CHAT", "anyone?", from, "Client" + (REGISTERED + 1 + i));
+        }
+        Message unknown = new Message("NOT_A_TYPE", "x", "Client1", "Client2");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            results.add(Bench.run("clientExists hit", threads,
+                    () -> Server.clientExists(chats[random()].getToNumber()) ? 1 : 0));
+            results.add(Bench.run("clientExists miss", threads,
+                    () -> Server.clientExists(misses[random()].getToNumber()) ? 1 : 0));
+            results.add(Bench.run("forward CHAT", threads, () -> {
+                Server.forwardMessage(chats[random()]);
+                return 1;
+            }));
+            results.add(Bench.run("forward CONNECT_REQUEST", threads, () -> {
+                Server.forwardMessage(requests[random()]);
+                return 1;
+            }));
+            results.add(Bench.run("forward CHAT to missing client", threads, () -> {
+                Server.forwardMessage(misses[random()]);
+                return 1;
+            }));
+            results.add(Bench.run("forward unknown type", threads, () -> {
+                Server.forwardMessage(unknown);
+                return 1;
+            }));
+        }
+        results.add(Bench.run("forward SYSTEM /list (" + REGISTERED + " clients)", () -> {
+            Server.forwardMessage(list);
+            return conns[0].delivered;
+        }));
+
+        // Per-message cost on the read path with --rate-limit set (buckets are single-reader)
+        int chatType = MessageCodec.typeCode("CHAT");
+        RateLimiter.Bucket open = RateLimiter.parse("all:1e12,chat:1e12", RateLimiter.Action.DELAY).newBucket();
+        RateLimiter.Bucket shut = RateLimiter.parse("all:1/1,chat:1/1", RateLimiter.Action.DELAY).newBucket();
+        shut.acquire(chatType, System.nanoTime());
+        results.add(Bench.run("rate limiter acquire", () -> open.acquire(chatType, System.nanoTime())));
+        results.add(Bench.run("rate limiter over limit", () -> shut.acquire(chatType, System.nanoTime())));
+
+        if (compare != null) compare(results, compare);
+        if (save != null) save(results, save);
+        System.exit(0);
+    }
+
+    private static void register(StubConnection[] conns, int i) {
+        conns[i] = new StubConnection(Server.nextClientNumber(), "user" + i);
+        Server.addClient(conns[i]);
+    }
+
+    private static int random() {
+        return ThreadLocalRandom.current().nextInt(REGISTERED);
+    }
+
+    private static String key(String name, int threads) {
+        return name + "\t" + threads;
+    }
+
+    private static void save(List<Bench.Result> results, Path file) throws IOException {
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(file))) {
+            w.println("# name\tthreads\tops_per_s\tbytes_per_op");
+            for (Bench.Result r : results) {
+                w.printf(Locale.ROOT, "%s\t%.0f\t%.1f%n", key(r.name, r.threads), r.opsPerSec, r.bytesPerOp);
+            }
+        }
+        System.out.println("baseline written to " + file);
+    }
+
+    private static void compare(List<Bench.Result> results, Path file) throws IOException {
+        Map<String, double[]> baseline = new HashMap<>();
+        for (String line : Files.readAllLines(file)) {
+            if (line.startsWith("#") || line.isBlank()) continue;
+            String[] f = line.split("\t");
+            baseline.put(key(f[0], Integer.parseInt(f[1])),
+                    new double[] {Double.parseDouble(f[2]), Double.parseDouble(f[3])});
+        }
+        System.out.printf("%n%-40s %3s %12s %12s %10s%n", "vs " + file, "thr", "ops/s", "baseline", "B/op");
+        for (Bench.Result r : results) {
+            double[] b = baseline.get(key(r.name, r.threads));
+            if (b == null) {
+                System.out.printf("%-40s %3d %,12.0f %12s%n", r.name, r.threads, r.opsPerSec, "(new)");
+                continue;
+            }
+            System.out.printf(Locale.ROOT, "%-40s %3d %,12.0f %+11.1f%% %+9.1f%n", r.name, r.threads,
+                    r.opsPerSec, (r.opsPerSec / b[0] - 1) * 100, r.bytesPerOp - b[1]);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opens N idle, handshaken connections against an in-process server and
+ * reports what each one costs: heap delta and live threads.
+ *
+ *   java IdleConnectionLoadTest [connections] [nio|blocking]
+ *
+ * The heap delta includes the client-side SocketChannel objects, which live
+ * in the same JVM; run both modes to compare. Thread stacks are native
+ * memory and do not show up in the heap figure, hence the thread count.
+ * Large N needs a raised file descriptor limit (ulimit -n).
+ */
+public class IdleConnectionLoadTest {
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        boolean nio = args.length < 2 || args[1].equals("nio");
+
+        Closeable server;
+        int port;
+        if (nio) {
+            NioServer s = new NioServer(0, 2);
+            s.start();
+            server = s;
+            port = s.getPort();
+        } else {
+            ServerSocket ss = new ServerSocket(0, 1024);
+            Thread t = new Thread(() -> {
+                try { Server.serve(ss, false); } catch (IOException ignored) {}
+            });
+            t.setDaemon(true);
+            t.start();
+            server = ss;
+            port = ss.getLocalPort();
+        }
+
+        // The server prints every connect; keep that out of the measurement
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        long heapBefore = usedHeap();
+        int threadsBefore = Thread.activeCount();
+        long start = System.nanoTime();
+
+        List<SocketChannel> open = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            SocketChannel ch = SocketChannel.open(new InetSocketAddress("localhost", port));
+            OutputStream out = ch.socket().getOutputStream();
+            MessageCodec.write(out, new Message("SYSTEM", "idle" + i, "temp", "Server"));
+            MessageCodec.read(new DataInputStream(ch.socket().getInputStream())); // welcome
+            open.add(ch);
+        }
+
+        long setupMs = (System.nanoTime() - start) / 1_000_000;
+        long heapAfter = usedHeap();
+        int threadsAfter = Thread.activeCount();
+
+        console.printf("mode=%s connections=%d setup=%dms%n", nio ? "nio" : "blocking", connections, setupMs);
+        console.printf("heap delta: %.1f KB total, %d bytes/connection%n",
+                (heapAfter - heapBefore) / 1024.0, (heapAfter - heapBefore) / connections);
+        console.printf("threads: %d -> %d%n", threadsBefore, threadsAfter);
+
+        for (SocketChannel ch : open) ch.close();
+        server.close();
+        System.exit(0);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,282 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator speaking the normal client protocol. Opens N
+ * connections, does the username handshake, pairs them up with
+ * CONNECT_REQUEST/CONNECT_ACCEPT and then has every client send CHAT
+ * messages to its partner at a fixed rate. Each message text starts with
+ * the sender's System.nanoTime(), so latency is measured end to end by the
+ * receiving connection in this same process.
+ *
+ *   java LoadGenerator [--host=H] [--port=N[,N...]] [--clients=N] [--rate=R[,R...]]
+ *                      [--size=B[,B...]] [--window=N] [--duration=S] [--warmup=S]
+ *                      [--embedded=nio|blocking] [--serialization=java|binary]
+ *                      [--out=results.json]
+ *
+ * --rate is messages per second per client. 0 runs closed-loop instead:
+ * each client keeps at most --window messages (default 1) in flight to its
+ * partner, so the result is the server's capacity rather than a backlog.
+ * Lists in --rate and --size run every combination as consecutive steps
+ * over the same connections. Results are written as a JSON array, one
+ * object per step, to --out or stdout.
+ *
+ * Several ports spread the clients round-robin over cluster nodes, so
+ * every pair spans two nodes and all chat crosses a node link.
+ */
+public class LoadGenerator {
+    private String host = "localhost";
+    private int[] ports = {59090};
+    private int clients = 100;
+    private int[] rates = {100};
+    private int[] sizes = {64};
+    private int window = 1;
+    private int durationSeconds = 10;
+    private int warmupSeconds = 2;
+    private String embedded = null;
+    private String outFile = null;
+
+    private final List<Peer> peers = new ArrayList<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram connectTime = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private volatile boolean measuring;
+    private volatile boolean sending;
+
+    /** One client connection: a reader thread counts and times what its partner sends. */
+    private final class Peer {
+        final Socket socket;
+        final OutputStream out;
+        final DataInputStream in;
+        String id;
+        Peer partner;
+        volatile Semaphore inFlight = new Semaphore(0); // closed-loop credit, released by the partner's reader
+
+        Peer(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        void send(Message msg) throws IOException {
+            MessageCodec.write(out, msg);
+            out.flush();
+        }
+
+        void readLoop() {
+            try {
+                while (true) {
+                    Message m = MessageCodec.read(in);
+                    long now = System.nanoTime();
+                    if (!"CHAT".equals(m.getType())) {
+                        if ("SYSTEM_ERROR".equals(m.getType())) errors.increment();
+                        continue;
+                    }
+                    String text = m.getText();
+                    int space = text.indexOf(' ');
+                    long sentAt = Long.parseLong(space < 0 ? text : text.substring(0, space));
+                    partner.inFlight.release();
+                    if (measuring) {
+                        latency.record(now - sentAt);
+                        received.increment();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // connection closed
+            }
+        }
+
+        void sendLoop(int rate, String padding) {
+            long interval = rate > 0 ? 1_000_000_000L / rate : 0;
+            long next = System.nanoTime();
+            try {
+                while (sending) {
+                    if (interval > 0) {
+                        long wait = next - System.nanoTime();
+                        if (wait > 0) LockSupport.parkNanos(wait);
+                        next += interval;
+                    } else if (!inFlight.tryAcquire(1, TimeUnit.SECONDS)) {
+                        inFlight.release(window); // assume the window was lost (e.g. dropped); reopen it
+                        continue;
+                    }
+                    send(new Message("CHAT", System.nanoTime() + " " + padding, id, partner.id));
+                    if (measuring) sent.increment();
+                }
+            } catch (IOException e) {
+                errors.increment();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator g = new LoadGenerator();
+        g.parse(args);
+        g.run();
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? null : arg.substring(eq + 1);
+            switch (name) {
+                case "--host": host = value; break;
+                case "--port": ports = ints(value); break;
+                case "--clients": clients = Math.max(2, Integer.parseInt(value) & ~1); break;
+                case "--rate": rates = ints(value); break;
+                case "--size": sizes = ints(value); break;
+                case "--window": window = Math.max(1, Integer.parseInt(value)); break;
+                case "--duration": durationSeconds = Integer.parseInt(value); break;
+                case "--warmup": warmupSeconds = Integer.parseInt(value); break;
+                case "--embedded": embedded = value == null ? "nio" : value; break;
+                case "--out": outFile = value; break;
+                case "--serialization":
+                    MessageCodec.setJavaSerialization(ServerOptions.serialization(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+    }
+
+    private static int[] ints(String csv) {
+        String[] parts = csv.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) values[i] = Integer.parseInt(parts[i].trim());
+        return values;
+    }
+
+    private void run() throws Exception {
+        Closeable server = embedded == null ? null : startEmbedded();
+
+        // ---- connect + handshake ----
+        long setupStart = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            long t0 = System.nanoTime();
+            Peer p = new Peer(new Socket(host, ports[i % ports.length]));
+            p.send(new Message("SYSTEM", "load" + i, "temp", "Server"));
+            p.id = MessageCodec.read(p.in).getTo(); // welcome carries our ID
+            connectTime.record(System.nanoTime() - t0);
+            peers.add(p);
+        }
+        long connectMillis = (System.nanoTime() - setupStart) / 1_000_000;
+        if (ports.length > 1) Thread.sleep(500); // let the nodes replicate their directories
+
+        // ---- pair through CONNECT_REQUEST / CONNECT_ACCEPT ----
+        long pairStart = System.nanoTime();
+        for (int i = 0; i < clients; i += 2) {
+            Peer a = peers.get(i), b = peers.get(i + 1);
+            a.send(new Message("CONNECT_REQUEST", "Requesting chat", a.id, b.id));
+            expect(b, "CONNECT_REQUEST");
+            b.send(new Message("CONNECT_ACCEPT", "Accepted", b.id, a.id));
+            expect(a, "CONNECT_ACCEPT");
+            a.partner = b;
+            b.partner = a;
+        }
+        long pairMillis = (System.nanoTime() - pairStart) / 1_000_000;
+
+        for (Peer p : peers) Thread.ofVirtual().start(p::readLoop);
+
+        // ---- steps ----
+        StringBuilder json = new StringBuilder("[\n");
+        boolean first = true;
+        for (int size : sizes) {
+            for (int rate : rates) {
+                String result = step(rate, size, connectMillis, pairMillis);
+                System.err.println(result);
+                json.append(first ? "" : ",\n").append("  ").append(result);
+                first = false;
+            }
+        }
+        json.append("\n]\n");
+
+        if (outFile == null) {
+            System.out.print(json);
+        } else {
+            try (Writer w = new FileWriter(outFile)) {
+                w.write(json.toString());
+            }
+        }
+        for (Peer p : peers) p.socket.close();
+        if (server != null) server.close();
+    }
+
+    private String step(int rate, int size, long connectMillis, long pairMillis) throws InterruptedException {
+        String padding = "x".repeat(Math.max(0, size - 20)); // ~20 chars of timestamp + space
+        sending = true;
+        for (Peer p : peers) p.inFlight = new Semaphore(window);
+        List<Thread> senders = new ArrayList<>(peers.size());
+        for (Peer p : peers) senders.add(Thread.ofVirtual().start(() -> p.sendLoop(rate, padding)));
+
+        Thread.sleep(warmupSeconds * 1000L);
+        latency.reset();
+        sent.reset();
+        received.reset();
+        errors.reset();
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(durationSeconds * 1000L);
+        sending = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for (Thread t : senders) t.join();
+        Thread.sleep(500); // let in-flight messages arrive
+        measuring = false;
+
+        return String.format(Locale.ROOT,
+                "{\"clients\": %d, \"rate_per_client\": %d, \"window\": %s, \"size_bytes\": %d, \"duration_s\": %.2f, "
+                        + "\"sent\": %d, \"received\": %d, \"errors\": %d, \"throughput_msgs_per_s\": %.1f, "
+                        + "\"latency_ms\": {\"p50\": %.3f, \"p99\": %.3f, \"p999\": %.3f, \"max\": %.3f}, "
+                        + "\"connect_ms\": {\"p50\": %.3f, \"p99\": %.3f, \"max\": %.3f}, "
+                        + "\"connect_total_ms\": %d, \"pairing_total_ms\": %d}",
+                peers.size(), rate, rate > 0 ? "null" : String.valueOf(window), size, seconds,
+                sent.sum(), received.sum(), errors.sum(), received.sum() / seconds,
+                ms(latency, 0.5), ms(latency, 0.99), ms(latency, 0.999), ms(latency, 1.0),
+                ms(connectTime, 0.5), ms(connectTime, 0.99), ms(connectTime, 1.0),
+                connectMillis, pairMillis);
+    }
+
+    private static double ms(LatencyHistogram h, double q) {
+        return h.percentile(q) / 1e6;
+    }
+
+    private static void expect(Peer p, String type) throws IOException {
+        Message m = MessageCodec.read(p.in);
+        if (!type.equals(m.getType())) {
+            throw new IOException(p.id + " expected " + type + " but got " + m.getType() + ": " + m.getText());
+        }
+    }
+
+    private Closeable startEmbedded() throws IOException {
+        Log.setLevel(Log.Level.WARN);
+        if (embedded.equals("nio")) {
+            NioServer s = new NioServer(0, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+            s.start();
+            ports = new int[] {s.getPort()};
+            return s;
+        }
+        ServerSocket ss = new ServerSocket();
+        ss.bind(new InetSocketAddress(0), 1024);
+        Thread t = new Thread(() -> {
+            try { Server.serve(ss, false); } catch (IOException ignored) {}
+        });
+        t.setDaemon(true);
+        t.start();
+        ports = new int[] {ss.getLocalPort()};
+        return ss;
+    }
+}
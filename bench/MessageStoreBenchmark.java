@@ -0,0 +1,71 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Append throughput of the offline message store, for a typical binary
+ * CHAT frame and a 1 KB frame, on 1..N threads. Each thread delivers its
+ * users' backlog every 1024 appends and a daemon runs maintain() so dead
+ * segments are reclaimed, keeping the disk footprint steady. Afterwards
+ * the store is reopened with larger and then smaller segments and filled
+ * past the reopened head, which must roll at its own size.
+ *
+ *   java MessageStoreBenchmark [maxThreads] [dir]
+ */
+public class MessageStoreBenchmark {
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        Path dir = args.length > 1 ? Path.of(args[1]) : Files.createTempDirectory("store-bench");
+        Log.setLevel(Log.Level.WARN);
+
+        MessageStore store = new MessageStore(dir, 16 << 20, Long.MAX_VALUE);
+        Thread maintenance = new Thread(() -> {
+            while (true) {
+                store.maintain();
+                try { Thread.sleep(100); } catch (InterruptedException e) { return; }
+            }
+        });
+        maintenance.setDaemon(true);
+        maintenance.start();
+
+        byte[] chat = MessageCodec.encode(new Message("CHAT", "hello there", "Client1", "Client2"));
+        byte[] large = MessageCodec.encode(new Message("CHAT", "x".repeat(1000), "Client1", "Client2"));
+        String[] users = new String[64];
+        for (int i = 0; i < users.length; i++) users[i] = "user" + i;
+
+        for (byte[] frame : new byte[][] {chat, large}) {
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                AtomicLong seq = new AtomicLong();
+                Bench.run("append " + frame.length + "B frame", threads, () -> {
+                    long n = seq.getAndIncrement();
+                    String user = users[(int) (n & 63)];
+                    store.append(user, frame);
+                    if ((n & 1023) == 1023) {
+                        for (int i = 0; i < 16; i++) store.take(users[(int) ((n >>> 10) * 16 + i & 63)], Integer.MAX_VALUE);
+                    }
+                    return n;
+                });
+            }
+        }
+
+        store.close();
+        for (int segmentBytes : new int[] {64 << 20, 1 << 20}) {
+            MessageStore reopened = new MessageStore(dir, segmentBytes, Long.MAX_VALUE);
+            for (int i = 0; i < (32 << 20) / large.length; i++) {
+                if (!reopened.append(users[i & 63], large)) {
+                    throw new IllegalStateException("append failed after reopening with " + segmentBytes + " B segments");
+                }
+            }
+            reopened.close();
+            System.out.println("reopened with " + (segmentBytes >> 20) + " MB segments: appends ok");
+        }
+        if (args.length < 2) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Cost of the instrumentation layer: raw histogram and counter recording
+ * (single and contended), and the full Server.onMessage routing path with
+ * metrics on vs off.
+ *
+ *   java MetricsOverheadBenchmark [maxThreads]
+ */
+public class MetricsOverheadBenchmark {
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        Log.setLevel(Log.Level.WARN);
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Bench.run("histogram.record", threads, () -> {
+                histogram.record(System.nanoTime() & 0xFFFFF);
+                return 1;
+            });
+            Bench.run("counter.increment", threads, () -> {
+                Metrics.increment(Metrics.received[1]);
+                return 1;
+            });
+        }
+
+        StubConnection alice = new StubConnection(1, "alice");
+        StubConnection bob = new StubConnection(2, "bob");
+        Server.addClient(alice);
+        Server.addClient(bob);
+        Message chat = new Message("CHAT", "hello there", "Client1", "Client2");
+
+        Metrics.setEnabled(false);
+        Bench.Result off = Bench.run("onMessage CHAT (metrics off)", () -> {
+            Server.onMessage(alice, chat);
+            return bob.delivered;
+        });
+        Metrics.setEnabled(true);
+        Bench.Result on = Bench.run("onMessage CHAT (metrics on)", () -> {
+            Server.onMessage(alice, chat);
+            return bob.delivered;
+        });
+        System.out.printf("overhead: %.1f ns/message, %.1f B/message%n",
+                1e9 / on.opsPerSec - 1e9 / off.opsPerSec, on.bytesPerOp - off.bytesPerOp);
+        System.exit(0);
+    }
+}
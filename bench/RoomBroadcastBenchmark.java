@@ -0,0 +1,44 @@
+/**
+ * Broadcast to one large room (5,000 members by default) using in-memory
+ * connections, so the numbers are the server-side fan-out cost alone:
+ *
+ *   per-member encode   - what a naive loop of sendMessage would do
+ *   encode once, serial - one frame shared, one thread walks all members
+ *   Rooms.broadcast     - one frame shared, slices fanned out in parallel
+ *
+ *   java RoomBroadcastBenchmark [members]
+ */
+public class RoomBroadcastBenchmark {
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        Log.setLevel(Log.Level.WARN);
+
+        StubConnection[] members = new StubConnection[size];
+        for (int i = 0; i < size; i++) {
+            members[i] = new StubConnection(i + 1, "user" + i);
+            Rooms.join("lobby", members[i]);
+        }
+        Rooms.Room room = Rooms.get("lobby");
+        Message msg = new Message("ROOM_CHAT", "hello everyone, this is a broadcast", "Client1", "lobby");
+
+        Bench.Result naive = Bench.run("per-member encode (" + size + ")", () -> {
+            for (StubConnection m : members) m.sendMessage(msg);
+            return members[size - 1].delivered;
+        });
+        Bench.Result serial = Bench.run("encode once, serial (" + size + ")", () -> {
+            byte[] frame = MessageCodec.encode(msg);
+            for (StubConnection m : members) m.sendFrame(frame);
+            return members[size - 1].delivered;
+        });
+        Bench.Result fanout = Bench.run("Rooms.broadcast (" + size + ")", () -> {
+            Rooms.broadcast(room, msg, null);
+            return members[size - 1].delivered;
+        });
+
+        for (Bench.Result r : new Bench.Result[] {naive, serial, fanout}) {
+            System.out.printf("%-40s %8.1f us/broadcast %,12.0f deliveries/s %8.1f B/broadcast%n",
+                    r.name, 1e6 / r.opsPerSec, r.opsPerSec * size, r.bytesPerOp);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * In-memory Connection for benchmarks: encodes and queues like a real
+ * client, then immediately drains its own queue as a writer would, without
+ * any socket.
+ */
+final class StubConnection implements Connection {
+    private int clientNumber;
+    private String clientId;
+    private String username;
+    private final OutboundQueue outbound = new OutboundQueue(1024, OutboundQueue.Overflow.DROP_OLDEST, 0);
+    private final byte[][] batch = new byte[64][];
+    long delivered;
+    long bytes;
+
+    StubConnection(int clientNumber, String username) {
+        this.clientNumber = clientNumber;
+        this.clientId = Message.clientId(clientNumber);
+        this.username = username;
+    }
+
+    @Override
+    public int getClientNumber() { return clientNumber; }
+    @Override
+    public String getClientId() { return clientId; }
+    @Override
+    public String getUsername() { return username; }
+    @Override
+    public void setUsername(String username) { this.username = username; }
+
+    @Override
+    public void setClientNumber(int number) {
+        clientNumber = number;
+        clientId = Message.clientId(number);
+    }
+
+    @Override
+    public OutboundQueue getOutbound() { return outbound; }
+
+    @Override
+    public void sendFrame(byte[] frame, boolean mayBlock) {
+        outbound.offer(frame, false);
+        drain();
+    }
+
+    /** Synchronized like the single writer of a real connection; senders may be on many threads. */
+    synchronized void drain() {
+        int n;
+        while ((n = outbound.drainTo(batch, batch.length)) > 0) {
+            for (int i = 0; i < n; i++) {
+                bytes += batch[i].length;
+                batch[i] = null;
+            }
+            delivered += n;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Platform vs virtual handler threads under a mostly idle population.
+ *
+ *   java ThreadModeBenchmark [platform|virtual] [idle] [active] [messagesPerClient]
+ *
+ * Defaults to 10000 idle and 1000 active clients. Active clients are paired;
+ * each sends CHAT to its partner every 10 ms with System.nanoTime() as the
+ * text, and the partner records the one-way latency. Run each mode in its
+ * own JVM so heap figures are comparable; the client side lives in the
+ * same JVM and is identical for both modes. Needs ulimit -n above
+ * 2 * (idle + active).
+ */
+public class ThreadModeBenchmark {
+    public static void main(String[] args) throws Exception {
+        boolean virtual = args.length < 1 || args[0].equals("virtual");
+        int idle = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int active = args.length > 2 ? Integer.parseInt(args[2]) & ~1 : 1_000;
+        int perClient = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        ServerSocket ss = new ServerSocket(0, 4096);
+        Thread acceptor = new Thread(() -> {
+            try { Server.serve(ss, virtual); } catch (IOException ignored) {}
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        int port = ss.getLocalPort();
+
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        List<SocketChannel> idleChannels = new ArrayList<>(idle);
+        for (int i = 0; i < idle; i++) {
+            SocketChannel ch = SocketChannel.open(new InetSocketAddress("localhost", port));
+            MessageCodec.write(ch.socket().getOutputStream(), new Message("SYSTEM", "idle" + i, "temp", "Server"));
+            MessageCodec.read(new DataInputStream(ch.socket().getInputStream()));
+            idleChannels.add(ch);
+        }
+        long idleSetupMs = (System.nanoTime() - start) / 1_000_000;
+        long heapIdle = usedHeap();
+        int threadsIdle = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        ActiveClient[] clients = new ActiveClient[active];
+        for (int i = 0; i < active; i++) {
+            clients[i] = new ActiveClient(port, "active" + i, perClient);
+        }
+
+        CountDownLatch done = new CountDownLatch(active);
+        for (int i = 0; i < active; i++) {
+            ActiveClient self = clients[i];
+            ActiveClient partner = clients[i ^ 1];
+            Thread.ofVirtual().start(() -> self.readLoop(done));
+            Thread.ofVirtual().start(() -> self.sendLoop(partner.id));
+        }
+        done.await();
+
+        long[] all = new long[active * perClient];
+        int n = 0;
+        for (ActiveClient c : clients) {
+            System.arraycopy(c.latencies, 0, all, n, c.received);
+            n += c.received;
+        }
+        Arrays.sort(all, 0, n);
+
+        console.printf("mode=%s idle=%d active=%d messages=%d%n", virtual ? "virtual" : "platform", idle, active, n);
+        console.printf("idle setup: %d ms (%.0f conn/s)%n", idleSetupMs, idle * 1000.0 / Math.max(1, idleSetupMs));
+        console.printf("heap with idle clients: %.1f MB (+%d bytes/connection)%n",
+                heapIdle / 1048576.0, (heapIdle - heapBefore) / Math.max(1, idle));
+        console.printf("platform threads with idle clients: %d%n", threadsIdle);
+        console.printf("latency us: p50=%d p99=%d p999=%d max=%d%n",
+                pct(all, n, 0.50), pct(all, n, 0.99), pct(all, n, 0.999), n == 0 ? 0 : all[n - 1] / 1000);
+
+        System.exit(0);
+    }
+
+    private static long pct(long[] sorted, int n, double p) {
+        if (n == 0) return 0;
+        return sorted[Math.min(n - 1, (int) (p * n))] / 1000;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static final class ActiveClient {
+        final Socket socket;
+        final OutputStream out;
+        final DataInputStream in;
+        final String id;
+        final long[] latencies;
+        int received;
+
+        ActiveClient(int port, String name, int perClient) throws IOException {
+            socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            MessageCodec.write(out, new Message("SYSTEM", name, "temp", "Server"));
+            out.flush();
+            id = MessageCodec.read(in).getTo();
+            latencies = new long[perClient];
+        }
+
+        void sendLoop(String partnerId) {
+            try {
+                for (int i = 0; i < latencies.length; i++) {
+                    MessageCodec.write(out, new Message("CHAT", Long.toString(System.nanoTime()), id, partnerId));
+                    out.flush();
+                    Thread.sleep(10);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void readLoop(CountDownLatch done) {
+            try {
+                while (received < latencies.length) {
+                    Message m = MessageCodec.read(in);
+                    if ("CHAT".equals(m.getType())) {
+                        latencies[received++] = System.nanoTime() - Long.parseLong(m.getText());
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Plaintext vs TLS, in both server modes, with a self-signed certificate
+ * generated into a temporary directory:
+ *
+ *   - connects per second: TCP connect, TLS handshake (full, or resumed from
+ *     the client's session cache), username handshake, close;
+ *   - chat throughput between two clients, each message flushed on its own.
+ *
+ *   java TlsBenchmark [seconds] [--size=B]
+ */
+public class TlsBenchmark {
+    private static final int WINDOW = 64;
+
+    private enum Mode { PLAIN, FULL, RESUMED }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = 3;
+        int size = 128;
+        for (String arg : args) {
+            if (arg.startsWith("--size=")) size = Integer.parseInt(arg.substring("--size=".length()));
+            else seconds = Integer.parseInt(arg);
+        }
+        Log.setLevel(Log.Level.WARN);
+        Path dir = Files.createTempDirectory("tls-bench");
+        Path keystore = dir.resolve("bench.p12");
+        char[] password = Tls.DEFAULT_PASSWORD.toCharArray();
+        SSLContext serverTls = Tls.serverContext(keystore, password);
+
+        List<String> rows = new ArrayList<>();
+        for (boolean nio : new boolean[] {false, true}) {
+            for (boolean tls : new boolean[] {false, true}) {
+                String server = (nio ? "nio" : "blocking") + (tls ? " tls" : " plain");
+                try (Closeable s = start(nio, tls ? serverTls : null)) {
+                    int port = port(s);
+                    // A fresh client context per run, so "resumed" starts from an empty cache
+                    SSLContext client = tls ? Tls.clientContext(Tls.trustStoreFor(keystore), password) : null;
+                    for (Mode mode : tls ? new Mode[] {Mode.FULL, Mode.RESUMED} : new Mode[] {Mode.PLAIN}) {
+                        connect(port, client, mode, 1); // warm up the paths
+                        double rate = connect(port, client, mode, seconds);
+                        rows.add(String.format(Locale.ROOT, "%-16s %-22s %,12.0f connects/s", server,
+                                "connect (" + mode.name().toLowerCase() + ")", rate));
+                        System.err.println(rows.get(rows.size() - 1));
+                    }
+                    chat(port, client, size, 1);
+                    double msgs = chat(port, client, size, seconds);
+                    rows.add(String.format(Locale.ROOT, "%-16s %-22s %,12.0f msgs/s %8.1f MB/s", server,
+                            "chat " + size + " B", msgs, msgs * size / 1e6));
+                    System.err.println(rows.get(rows.size() - 1));
+                }
+            }
+        }
+        System.out.println();
+        for (String row : rows) System.out.println(row);
+        for (Path p : new Path[] {Tls.trustStoreFor(keystore), keystore, dir}) Files.deleteIfExists(p);
+        System.exit(0);
+    }
+
+    private static Closeable start(boolean nio, SSLContext tls) throws IOException {
+        if (nio) {
+            NioServer s = new NioServer(0, 1, tls);
+            s.start();
+            return s;
+        }
+        ServerSocket ss = tls == null ? new ServerSocket(0) : Tls.serverSocket(tls, 0);
+        Thread t = new Thread(() -> {
+            try { Server.serve(ss, false); } catch (IOException ignored) {}
+        });
+        t.setDaemon(true);
+        t.start();
+        return ss;
+    }
+
+    private static int port(Closeable server) {
+        return server instanceof NioServer ? ((NioServer) server).getPort() : ((ServerSocket) server).getLocalPort();
+    }
+
+    private static Socket open(int port, SSLContext tls) throws IOException {
+        Socket s = tls == null ? new Socket("localhost", port) : Tls.clientSocket(tls, "localhost", port);
+        s.setTcpNoDelay(true);
+        return s;
+    }
+
+    /** Returns the client's ID from the welcome message. */
+    private static String hello(OutputStream out, DataInputStream in, String name) throws IOException {
+        MessageCodec.write(out, new Message("SYSTEM", name, "temp", "Server"));
+        out.flush();
+        return MessageCodec.read(in).getTo();
+    }
+
+    /** Sequential connects for the given time; returns connects per second. */
+    private static double connect(int port, SSLContext tls, Mode mode, int seconds) throws IOException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long start = System.nanoTime();
+        int n = 0;
+        while (System.nanoTime() < end) {
+            try (Socket s = open(port, tls)) {
+                hello(s.getOutputStream(), new DataInputStream(s.getInputStream()), "c" + n);
+                // Dropping the session from the client cache forces the next handshake to be a full one
+                if (mode == Mode.FULL) ((SSLSocket) s).getSession().invalidate();
+            }
+            n++;
+        }
+        return n / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /** One client sends to another with at most WINDOW messages in flight; returns messages per second. */
+    private static double chat(int port, SSLContext tls, int size, int seconds) throws Exception {
+        try (Socket a = open(port, tls); Socket b = open(port, tls)) {
+            OutputStream aOut = new BufferedOutputStream(a.getOutputStream());
+            DataInputStream aIn = new DataInputStream(new BufferedInputStream(a.getInputStream()));
+            OutputStream bOut = new BufferedOutputStream(b.getOutputStream());
+            DataInputStream bIn = new DataInputStream(new BufferedInputStream(b.getInputStream()));
+            String aId = hello(aOut, aIn, "sender");
+            String bId = hello(bOut, bIn, "receiver");
+
+            Semaphore window = new Semaphore(WINDOW);
+            LongAdder received = new LongAdder();
+            Thread reader = new Thread(() -> {
+                try {
+                    while (true) {
+                        if ("CHAT".equals(MessageCodec.read(bIn).getType())) {
+                            received.increment();
+                            window.release();
+                        }
+                    }
+                } catch (IOException ignored) {
+                    // closed
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+
+            String text = "x".repeat(size);
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            long start = System.nanoTime();
+            while (System.nanoTime() < end) {
+                if (!window.tryAcquire(1, TimeUnit.SECONDS)) throw new IOException("chat stalled");
+                MessageCodec.write(aOut, new Message("CHAT", text, aId, bId));
+                aOut.flush();
+            }
+            window.tryAcquire(WINDOW, 5, TimeUnit.SECONDS);
+            return received.sum() / ((System.nanoTime() - start) / 1e9);
+        }
+    }
+}
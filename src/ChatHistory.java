@@ -0,0 +1,146 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Chat lines for the client, kept in a fixed-capacity ring so memory and
+ * redraw cost do not grow with the conversation. Lines pushed out of the
+ * ring are either forgotten or, with a spill file, appended to it so the
+ * scroll-back API can still reach them.
+ *
+ * Lines are addressed by a sequence number: first() is the oldest line still
+ * reachable, end() is one past the newest. The spill file keeps one offset
+ * per SPILL_STRIDE lines, so its index stays small for long sessions.
+ */
+final class ChatHistory implements Closeable {
+    private static final int SPILL_STRIDE = 64;
+
+    private final String[] ring;
+    private long end;            // sequence number of the next line
+    private long start;          // first sequence number of this conversation
+
+    private final File spillFile; // null: evicted lines are dropped
+    private RandomAccessFile spill;
+    private long spillLength;
+    private long[] spillIndex = new long[16]; // byte offset of line start + i * SPILL_STRIDE
+    private long spilled;        // lines written to the spill file
+    private boolean spillFailed; // a write failed: evicted lines are dropped from then on
+    private String spillFailure; // why, until taken
+
+    ChatHistory(int capacity, File spillFile) {
+        this.ring = new String[Math.max(1, capacity)];
+        this.spillFile = spillFile;
+    }
+
+    int capacity() { return ring.length; }
+
+    /** Oldest reachable sequence number. */
+    long first() {
+        return spilling() ? start : Math.max(start, end - ring.length);
+    }
+
+    /** One past the newest sequence number. */
+    long end() { return end; }
+
+    void add(String line) {
+        int slot = (int) (end % ring.length);
+        if (end - start >= ring.length && spilling()) {
+            spillLine(ring[slot]);
+        }
+        ring[slot] = line;
+        end++;
+    }
+
+    /** Lines [from, from + count) clipped to what is reachable, oldest first. */
+    List<String> lines(long from, int count) {
+        from = Math.max(from, first());
+        long to = Math.min(end, from + count);
+        List<String> out = new ArrayList<>((int) Math.max(0, to - from));
+        long inRing = Math.max(start, end - ring.length);
+        if (from < inRing) {
+            out.addAll(readSpill(from - start, (int) (Math.min(to, inRing) - from)));
+            from = inRing;
+        }
+        for (long seq = from; seq < to; seq++) out.add(ring[(int) (seq % ring.length)]);
+        return out;
+    }
+
+    /** The newest count lines, oldest first. */
+    List<String> tail(int count) {
+        return lines(end - count, count);
+    }
+
+    /** Start a new conversation; older lines (and the spill file) are discarded. */
+    void clear() {
+        Arrays.fill(ring, null);
+        start = end;
+        if (spill != null) {
+            try {
+                spill.setLength(0);
+            } catch (IOException ignored) {}
+        }
+        spillLength = 0;
+        spilled = 0;
+    }
+
+    /** Why spilling stopped, the first time this is asked after it did; else null. */
+    String takeSpillFailure() {
+        String failure = spillFailure;
+        spillFailure = null;
+        return failure;
+    }
+
+    @Override
+    public void close() {
+        if (spill != null) {
+            try { spill.close(); } catch (IOException ignored) {}
+            spill = null;
+        }
+    }
+
+    // ---------------- spill file ----------------
+
+    private boolean spilling() {
+        return spillFile != null && !spillFailed;
+    }
+
+    private void spillLine(String line) {
+        try {
+            if (spill == null) spill = new RandomAccessFile(spillFile, "rw");
+            if (spilled % SPILL_STRIDE == 0) {
+                int i = (int) (spilled / SPILL_STRIDE);
+                if (i == spillIndex.length) spillIndex = Arrays.copyOf(spillIndex, i * 2);
+                spillIndex[i] = spillLength;
+            }
+            byte[] bytes = (line.replace("\n", " ") + "\n").getBytes(StandardCharsets.UTF_8);
+            spill.seek(spillLength);
+            spill.write(bytes);
+            spillLength += bytes.length;
+            spilled++;
+        } catch (IOException e) {
+            // History is best effort; keep chatting without the spill file rather than retry every line
+            spillFailed = true;
+            spillFailure = e.getMessage();
+            close();
+        }
+    }
+
+    /** Read count spilled lines starting at spill line number n. */
+    private List<String> readSpill(long n, int count) {
+        List<String> out = new ArrayList<>(count);
+        if (spill == null || n >= spilled) return out;
+        try {
+            spill.seek(spillIndex[(int) (n / SPILL_STRIDE)]);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(spill.getFD()), StandardCharsets.UTF_8));
+            for (long skip = n % SPILL_STRIDE; skip > 0; skip--) reader.readLine();
+            String line;
+            while (out.size() < count && (line = reader.readLine()) != null) out.add(line);
+        } catch (IOException ignored) {
+            // return what was read
+        }
+        return out;
+    }
+}
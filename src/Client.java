@@ -1,49 +1,184 @@
+import javax.net.ssl.SSLContext;
 import java.io.*;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Client UI model with three states:
- *  - IDLE: prompt "/list or client ID". After /list, re-prompt.
+ *  - IDLE: prompt "/list, /join <room> or client ID". /list [page],
+ *    /find <prefix> [page], /subscribe and /unsubscribe go to the server
+ *    and re-prompt after the reply.
  *  - AWAIT_DECISION: someone requested -> clear screen, ask (y/n).
- *  - CHATTING: clear-and-redraw full history after every send/receive.
+ *  - CHATTING: with one partner, or in a room (until /leave). The screen
+ *    is drawn once on entry; after that new lines are appended in place
+ *    (--render=incremental, the default) or the screen is cleared and the
+ *    recent history redrawn on every line (--render=redraw). /history
+ *    scrolls back a page at a time.
  *
- * Only the MAIN LOOP prints prompts. A background stdin reader thread
- * pushes lines into inputQueue. A listener thread pushes server messages
- * into msgQueue. The main loop "selects" between the two queues.
+ * Only the MAIN LOOP prints prompts. A background stdin reader thread and
+ * a network listener thread both push into one event queue, and the main
+ * loop blocks on it, so it reacts as soon as either has something and does
+ * not wake up at all while idle.
+ *
+ * /probe [n] sends n CHAT messages to ourselves through the server and
+ * reports send-to-render latency, split into network and local dispatch.
+ *
+ * --tls[=truststore.p12] connects over TLS, trusting the certificates in
+ * the given PKCS12 file (a server's self-signed chat-tls-trust.p12) or the
+ * JDK's default CAs.
+ *
+ * If the connection drops (e.g. the server restarts), the client reconnects
+ * with jittered exponential backoff, asks for its previous ID back with the
+ * resume token from the server's last welcome, and keeps its chat partner,
+ * room and presence subscription. Lines typed in the meantime wait in the
+ * event queue.
+ *
+ * While chatting with a partner, /send <path> offers them a file, and
+ * /accept, /reject and /cancel answer or stop transfers (see FileTransfer).
+ * Received files go to --downloads=DIR (default "downloads").
+ *
+ * --compress asks the server to deflate frames both ways (see Compression);
+ * frames under --compress-min bytes are sent as they are.
  */
 public class Client {
     private enum State { IDLE, AWAIT_DECISION, CHATTING }
 
     private static String myId;
+    private static String resumeToken;  // from the last welcome; proves myId is ours on reconnect
     private static String username;
     private static volatile State state = State.IDLE;
 
     // who we are chatting with (clientId) when CHATTING
     private static volatile String activePartnerId = null;
 
+    // room we are chatting in when CHATTING in a room (then activePartnerId is null)
+    private static volatile String activeRoom = null;
+
     // who asked to connect (clientId) when AWAIT_DECISION
     private static volatile String pendingRequesterId = null;
 
-    // Queues
-    private static final BlockingQueue<String> inputQueue = new LinkedBlockingQueue<>();
-    private static final BlockingQueue<Message> msgQueue   = new LinkedBlockingQueue<>();
+    // One event queue fed by the stdin reader and the network listener
+    private static final class Event {
+        final String line;      // a line typed by the user, or
+        final Message msg;      // a message from the server, or
+        final String notice;    // something a background thread (file sender) wants shown
+        final long nanos = System.nanoTime();
+
+        Event(String line, Message msg) {
+            this(line, msg, null);
+        }
+
+        Event(String line, Message msg, String notice) {
+            this.line = line;
+            this.msg = msg;
+            this.notice = notice;
+        }
+    }
+
+    private static final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+
+    // Posted by a connection's listener when it ends
+    private static final Event DISCONNECTED = new Event(null, null);
+
+    // Connection (main loop only), kept for reconnects; one TLS context, so its sessions resume
+    private static String host = "localhost";
+    private static int port = 59090;
+    private static SSLContext tls;             // null: plaintext
+    private static Socket socket;
+    private static volatile Link link;         // current connection; file senders write here too
+    private static boolean compress;           // offer compression in the handshake
+    private static int compressMin = Compression.DEFAULT_THRESHOLD;
+
+    // A connection's output and its deflate stream (null: uncompressed), swapped together on reconnect
+    private static final class Link {
+        final OutputStream out;
+        final Compression compression;
+
+        Link(OutputStream out, Compression compression) {
+            this.out = out;
+            this.compression = compression;
+        }
+    }
+    private static boolean subscribed;         // presence pushes requested; renewed on reconnect
+    private static final long RECONNECT_BASE_MS = 250;
+    private static final long RECONNECT_MAX_MS = 30_000;
+
+    // Latency probe state (main loop only)
+    private static final String PROBE_PREFIX = "PROBE ";
+    private static int probesLeft;
+    private static int probesSent;
+    private static LatencyHistogram probeTotal;
+    private static LatencyHistogram probeNetwork;
+
+    // Chat history (strings already formatted for display), bounded by --history=N
+    private static ChatHistory chatHistory;
+    private static final int HISTORY_PAGE = 20;
+    private static long scrollTop;             // oldest history line currently on screen
+
+    // Rendering: incremental appends new lines; ANSI lets it rewrite the prompt line
+    private static boolean incremental = true;
+    private static boolean ansi;
+    private static boolean fullDrawPending;
 
-    // Simple chat history (strings already formatted for display)
-    private static final List<String> chatHistory = new ArrayList<>();
+    private static FileTransfer files;
 
     public static void main(String[] args) {
-        String host = "localhost";
-        int port = 59090;
+        int historyLines = 500;
+        File spill = null;
+        String trustStore = null;
+        boolean useTls = false;
+        String tlsPassword = Tls.DEFAULT_PASSWORD;
+        String downloads = "downloads";
+        for (String arg : args) {
+            if (arg.startsWith("--host=")) {
+                host = arg.substring("--host=".length());
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--serialization=")) {
+                MessageCodec.setJavaSerialization(ServerOptions.serialization(arg.substring("--serialization=".length())));
+            } else if (arg.startsWith("--render=")) {
+                incremental = !"redraw".equals(arg.substring("--render=".length()));
+            } else if (arg.startsWith("--history=")) {
+                historyLines = Integer.parseInt(arg.substring("--history=".length()));
+            } else if (arg.equals("--history-spill")) {
+                try {
+                    spill = File.createTempFile("chat-history", ".txt");
+                    spill.deleteOnExit();
+                } catch (IOException e) {
+                    println("History spill disabled: " + e.getMessage());
+                }
+            } else if (arg.startsWith("--history-spill=")) {
+                spill = new File(arg.substring("--history-spill=".length()));
+            } else if (arg.equals("--tls")) {
+                useTls = true;
+            } else if (arg.startsWith("--tls=")) {
+                useTls = true;
+                trustStore = arg.substring("--tls=".length());
+            } else if (arg.startsWith("--tls-password=")) {
+                tlsPassword = arg.substring("--tls-password=".length());
+            } else if (arg.equals("--compress")) {
+                compress = true;
+            } else if (arg.startsWith("--compress-min=")) {
+                compressMin = Integer.parseInt(arg.substring("--compress-min=".length()));
+            } else if (arg.startsWith("--downloads=")) {
+                downloads = arg.substring("--downloads=".length());
+            }
+        }
+        chatHistory = new ChatHistory(historyLines, spill);
+        files = new FileTransfer(Paths.get(downloads), Client::write,
+                notice -> events.add(new Event(null, null, notice)));
+        String term = System.getenv("TERM");
+        ansi = System.console() != null && term != null && !term.equals("dumb");
 
-        try (Socket socket = new Socket(host, port)) {
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            out.flush();
-            ObjectInputStream in  = new ObjectInputStream(socket.getInputStream());
+        try {
+            if (useTls) {
+                tls = Tls.clientContext(trustStore == null ? null : Paths.get(trustStore), tlsPassword.toCharArray());
+            }
 
             // ---- stdin reader (never prints) ----
             Thread stdinReader = new Thread(() -> {
@@ -52,7 +187,7 @@ public class Client {
                     while (true) {
                         String line = br.readLine();
                         if (line == null) break;
-                        inputQueue.put(line);
+                        events.put(new Event(line, null));
                     }
                 } catch (Exception ignored) {}
             });
@@ -64,45 +199,20 @@ public class Client {
             String uname = takeLineBlocking();
             if (uname == null || uname.trim().isEmpty()) uname = "user";
             username = uname.trim();
-            out.writeObject(new Message("SYSTEM", username, "temp", "Server"));
-            out.flush();
-
-            Message welcome = (Message) in.readObject();
-            myId = welcome.getTo();
-            println("Server: " + welcome.getText());
+            OutputStream out = connect();
             println(""); // spacing
 
-            // ---- network listener (never prints) ----
-            Thread listener = new Thread(() -> {
-                try {
-                    while (true) {
-                        Message m = (Message) in.readObject();
-                        msgQueue.put(m);
-                    }
-                } catch (Exception ignored) {
-                    // server closed or error
-                    try { msgQueue.put(new Message("SYSTEM_ERROR", "Disconnected from server.", "Server", myId)); } catch (Exception __) {}
-                }
-            });
-            listener.setDaemon(true);
-            listener.start();
-
             // ---- main event/render loop ----
             state = State.IDLE;
             boolean promptShown = false;
 
             while (true) {
-                // 1) Drain any pending server messages first so UI reacts immediately
-                Message m;
-                while ((m = msgQueue.poll()) != null) {
-                    promptShown = handleServerMessage(m, out, promptShown);
-                }
-
-                // 2) Depending on state, show the right prompt (exactly once)
-                if (!promptShown) {
+                // 1) Depending on state, show the right prompt (exactly once),
+                //    unless more events are already waiting to be handled
+                if (!promptShown && events.isEmpty()) {
                     switch (state) {
                         case IDLE:
-                            printPlain("Enter /list or client ID: ");
+                            printPlain("Enter /list, /join <room> or client ID: ");
                             promptShown = true;
                             break;
                         case AWAIT_DECISION:
@@ -113,32 +223,66 @@ public class Client {
                             promptShown = true;
                             break;
                         case CHATTING:
-                            // show history and one input prompt
-                            redrawChat();
+                            // show history (once, in incremental mode) and one input prompt
+                            if (!incremental || fullDrawPending) {
+                                redrawChat();
+                                fullDrawPending = false;
+                            }
                             printPlain("You: ");
                             promptShown = true;
                             break;
                     }
                 }
 
-                // 3) Read a line of input (non-blocking with small timeout), so
-                //    server events can still preempt.
-                String line = inputQueue.poll(150, TimeUnit.MILLISECONDS);
-                if (line == null) continue; // no user input yet; spin to handle messages
+                // 2) Wait for the next input line or server message; while a file
+                //    comes in, wake up now and then to notice if it stalls
+                Event event = files.receiving() ? events.poll(1, TimeUnit.SECONDS) : events.take();
+                if (event == null) {
+                    String stalled = files.expire(myId);
+                    if (stalled != null) promptShown = showNotice(stalled);
+                    continue;
+                }
+                if (event == DISCONNECTED) {
+                    out = reconnect();
+                    promptShown = false;
+                    continue;
+                }
+                if (event.msg != null) {
+                    promptShown = handleServerMessage(event.msg, event.nanos, out, promptShown);
+                    continue;
+                }
+                if (event.notice != null) {
+                    promptShown = showNotice(event.notice);
+                    continue;
+                }
 
-                line = line.trim();
+                String line = event.line.trim();
+                String notice;
 
-                // 4) Handle input by state
+                if (line.toLowerCase().startsWith("/probe") && state != State.AWAIT_DECISION) {
+                    promptShown = startProbe(out, line); // results re-prompt when done
+                    continue;
+                }
+
+                // 3) Handle input by state
                 switch (state) {
                     case IDLE:
-                        if (line.equalsIgnoreCase("/list")) {
-                            out.writeObject(new Message("SYSTEM", "/list", myId, "Server"));
-                            out.flush();
-                            promptShown = false; // will re-prompt after list arrives
+                        String command = line.toLowerCase();
+                        if (command.equals("/list") || command.startsWith("/list ") || command.startsWith("/find ")
+                                || command.equals("/subscribe") || command.equals("/unsubscribe")) {
+                            if (command.equals("/subscribe") || command.equals("/unsubscribe")) {
+                                subscribed = command.equals("/subscribe");
+                            }
+                            send(out, new Message("SYSTEM", line, myId, "Server"));
+                            promptShown = false; // will re-prompt after the reply arrives
+                        } else if (line.toLowerCase().startsWith("/join ")) {
+                            String room = line.substring("/join ".length()).trim();
+                            send(out, new Message("ROOM_JOIN", room, myId, "Server"));
+                            println("Joining " + room + "...");
+                            promptShown = false; // server confirms with ROOM_JOIN
                         } else if (!line.isEmpty()) {
                             // treat as clientId to request
-                            out.writeObject(new Message("CONNECT_REQUEST", "Requesting chat", myId, line));
-                            out.flush();
+                            send(out, new Message("CONNECT_REQUEST", "Requesting chat", myId, line));
                             println("Asking permission from " + line + "...");
                             promptShown = false; // re-show the idle prompt
                         }
@@ -147,13 +291,11 @@ public class Client {
                     case AWAIT_DECISION:
                         if (line.equalsIgnoreCase("y") || line.equalsIgnoreCase("yes")) {
                             if (pendingRequesterId != null) {
-                                out.writeObject(new Message("CONNECT_ACCEPT", "Accepted", myId, pendingRequesterId));
-                                out.flush();
+                                send(out, new Message("CONNECT_ACCEPT", "Accepted", myId, pendingRequesterId));
                                 // transition to chat
                                 activePartnerId = pendingRequesterId;
                                 pendingRequesterId = null;
-                                chatHistory.clear();
-                                chatHistory.add("Connected to " + activePartnerId);
+                                startConversation("Connected to " + activePartnerId);
                                 state = State.CHATTING;
                                 promptShown = false; // force redrawChat + You:
                             } else {
@@ -163,8 +305,7 @@ public class Client {
                             }
                         } else if (line.equalsIgnoreCase("n") || line.equalsIgnoreCase("no")) {
                             if (pendingRequesterId != null) {
-                                out.writeObject(new Message("CONNECT_DENY", "Denied", myId, pendingRequesterId));
-                                out.flush();
+                                send(out, new Message("CONNECT_DENY", "Denied", myId, pendingRequesterId));
                             }
                             pendingRequesterId = null;
                             state = State.IDLE;
@@ -176,13 +317,23 @@ public class Client {
                         break;
 
                     case CHATTING:
-                        if (!line.isEmpty()) {
-                            out.writeObject(new Message("CHAT", line, myId, activePartnerId));
-                            out.flush();
-                            chatHistory.add(username + ": " + line);
-                            // After each send, clear and show full history
-                            redrawChat();
+                        if (line.equalsIgnoreCase("/history")) {
+                            showEarlierHistory();
                             printPlain("You: ");
+                        } else if (activeRoom != null && line.equalsIgnoreCase("/leave")) {
+                            send(out, new Message("ROOM_LEAVE", activeRoom, myId, "Server"));
+                            println("Left " + activeRoom);
+                            activeRoom = null;
+                            state = State.IDLE;
+                            promptShown = false;
+                        } else if (activeRoom != null && !line.isEmpty()) {
+                            send(out, new Message("ROOM_CHAT", line, myId, activeRoom));
+                            addChatLine(username + ": " + line, true);
+                        } else if (line.startsWith("/") && (notice = files.command(line, myId, activePartnerId)) != null) {
+                            showNotice(notice);
+                        } else if (!line.isEmpty()) {
+                            send(out, new Message("CHAT", line, myId, activePartnerId));
+                            addChatLine(username + ": " + line, true);
                         }
                         // keep promptShown = true (we already printed it)
                         break;
@@ -198,7 +349,8 @@ public class Client {
     // ---------------- UI & handlers ----------------
 
     /** Process a server message. Returns updated promptShown flag. */
-    private static boolean handleServerMessage(Message msg, ObjectOutputStream out, boolean promptShown) throws IOException {
+    private static boolean handleServerMessage(Message msg, long receivedNanos, OutputStream out,
+                                               boolean promptShown) throws IOException {
         switch (msg.getType()) {
             case "SYSTEM":
                 println(msg.getText());
@@ -221,9 +373,9 @@ public class Client {
             case "CONNECT_ACCEPT":
                 // We are now in a chat session with msg.getFrom()
                 activePartnerId = msg.getFrom();
+                activeRoom = null;
                 pendingRequesterId = null;
-                chatHistory.clear();
-                chatHistory.add("Connected to " + activePartnerId);
+                startConversation("Connected to " + activePartnerId);
                 state = State.CHATTING;
                 return false; // will redraw chat + prompt "You:"
 
@@ -234,32 +386,349 @@ public class Client {
                 return false;
 
             case "CHAT":
+                if (myId.equals(msg.getFrom()) && msg.getText() != null && msg.getText().startsWith(PROBE_PREFIX)) {
+                    return onProbeReply(msg, receivedNanos, out);
+                }
                 // Only show if relevant to the active chat partner
                 if (state == State.CHATTING && activePartnerId != null && activePartnerId.equals(msg.getFrom())) {
-                    chatHistory.add(msg.getFrom() + ": " + msg.getText());
-                    // Clear and redraw the whole chat on receive
-                    redrawChat();
-                    printPlain("You: ");
+                    addChatLine(msg.getFrom() + ": " + msg.getText(), false);
                     return true; // prompt already shown
                 } else {
                     // If not in chat, just surface it (rare edge); stay in current state
                     println(msg.getFrom() + ": " + msg.getText());
                     return false;
                 }
+
+            case "PING":
+                send(out, new Message("PONG", null, myId, "Server"));
+                return promptShown;
+
+            case "PONG":
+                return promptShown;
+
+            case "PRESENCE":
+                // One "+id name" or "-id name" per line
+                for (String delta : msg.getText().split("\n")) {
+                    int space = delta.indexOf(' ');
+                    if (space < 1) continue;
+                    println(delta.substring(space + 1) + " (" + delta.substring(1, space) + ") is "
+                            + (delta.charAt(0) == '+' ? "online" : "offline"));
+                }
+                return false;
+
+            case "ROOM_JOIN":
+                if (state == State.CHATTING && msg.getText().equals(activeRoom)) {
+                    return promptShown; // rejoined after a reconnect; keep the conversation
+                }
+                // Server confirmed; the room name is in the text
+                activeRoom = msg.getText();
+                activePartnerId = null;
+                startConversation("Joined room " + activeRoom + " (/leave to exit, /history to scroll back)");
+                state = State.CHATTING;
+                return false;
+
+            case "FILE_OFFER":
+            case "FILE_ACCEPT":
+            case "FILE_CREDIT":
+            case "FILE_CHUNK":
+            case "FILE_CANCEL": {
+                String partner = state == State.CHATTING ? activePartnerId : null;
+                String notice = files.onMessage(msg, myId, partner);
+                return notice == null ? promptShown : showNotice(notice);
+            }
+
+            case "ROOM_CHAT": {
+                String line = "Server".equals(msg.getFrom())
+                        ? "* " + msg.getText()
+                        : msg.getFrom() + ": " + msg.getText();
+                if (state == State.CHATTING && msg.getTo().equals(activeRoom)) {
+                    addChatLine(line, false);
+                    return true;
+                }
+                println("[" + msg.getTo() + "] " + line);
+                return false;
+            }
         }
         return promptShown;
     }
 
+    /**
+     * Send on the current connection. If that fails the socket is closed, so
+     * its listener reports the disconnect and the main loop reconnects.
+     */
+    private static void send(OutputStream out, Message msg) {
+        try {
+            Link l = link;
+            synchronized (out) {
+                // A stream that is no longer current belongs to a dead socket; the write just fails
+                out.write(encode(l.out == out ? l.compression : null, msg));
+                out.flush();
+            }
+        } catch (IOException e) {
+            println("(not sent: " + e.getMessage() + ")");
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /** Send on the current connection from any thread (file senders); the caller handles failure. */
+    private static void write(Message msg) throws IOException {
+        Link l = link;
+        try {
+            synchronized (l.out) {
+                l.out.write(encode(l.compression, msg));
+                l.out.flush();
+            }
+        } catch (IOException e) {
+            try { socket.close(); } catch (IOException ignored) {}
+            throw e;
+        }
+    }
+
+    /** Frame msg, deflated when compression is on. Under the stream's lock: frames deflate in write order. */
+    private static byte[] encode(Compression c, Message msg) {
+        byte[] frame = MessageCodec.encode(msg);
+        return c == null ? frame : c.compress(frame);
+    }
+
+    /** Decode a frame read off the wire, inflating it first if it is compressed. */
+    private static Message decode(Compression c, byte[] frame) throws IOException {
+        int len = frame.length - MessageCodec.HEADER_BYTES;
+        if (c != null && Compression.isCompressed(frame, MessageCodec.HEADER_BYTES, len)) {
+            frame = c.inflate(frame, MessageCodec.HEADER_BYTES, len);
+        }
+        return MessageCodec.decodeFrame(frame);
+    }
+
+    /** Show a status line: in the conversation while chatting, else on its own. Returns promptShown. */
+    private static boolean showNotice(String notice) {
+        if (state == State.CHATTING) {
+            addChatLine("* " + notice, false);
+            return true;
+        }
+        println(notice);
+        return false;
+    }
+
+    // ---------------- connection ----------------
+
+    /**
+     * Open a connection, do the username handshake and start its listener.
+     * Once we have an ID the handshake asks for it back with the token the
+     * last welcome carried, which the server grants unless another client
+     * holds it.
+     */
+    private static OutputStream connect() throws IOException {
+        Socket s = tls != null ? Tls.clientSocket(tls, host, port) : new Socket(host, port);
+        try {
+            s.setTcpNoDelay(true);
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            // A fresh deflate context per connection; the intro's flags offer it
+            Compression c = compress ? new Compression(Compression.LEVEL, compressMin, false) : null;
+            String hello = resumeToken == null ? username : username + MessageCodec.RESUME_MARK + resumeToken;
+            byte[] intro = MessageCodec.encode(new Message("SYSTEM", hello, myId == null ? "temp" : myId, "Server"));
+            if (c != null) intro[MessageCodec.HEADER_BYTES] |= Compression.OFFER_FLAGS;
+            out.write(intro);
+            out.flush();
+
+            byte[] reply = MessageCodec.readFrame(in);
+            int flags = reply.length > MessageCodec.HEADER_BYTES ? reply[MessageCodec.HEADER_BYTES] : 0;
+            boolean accepted = Compression.offered(flags);
+            if (c != null && !accepted && (flags & MessageCodec.FLAG_DEFLATE_OK) != 0) {
+                // A server that ignored our dictionary version: its frames would not inflate here
+                println("* Server compresses with another dictionary; connecting without compression");
+                compress = false;
+                s.close();
+                return connect();
+            }
+            Message welcome = decode(c, reply);
+            if (!"SYSTEM".equals(welcome.getType())) throw new IOException(welcome.getText());
+            myId = welcome.getTo();
+            String text = welcome.getText();
+            int mark = text.indexOf(MessageCodec.RESUME_MARK);
+            resumeToken = mark < 0 ? null : text.substring(mark + MessageCodec.RESUME_MARK.length());
+            println("Server: " + (mark < 0 ? text : text.substring(0, mark)));
+            socket = s;
+            link = new Link(out, accepted ? c : null);
+
+            // ---- network listener (never prints) ----
+            Thread listener = new Thread(() -> {
+                try {
+                    while (true) {
+                        Message m = decode(c, MessageCodec.readFrame(in));
+                        events.put(new Event(null, m));
+                    }
+                } catch (Exception ignored) {
+                    // server closed or error
+                    events.add(DISCONNECTED);
+                }
+            });
+            listener.setDaemon(true);
+            listener.start();
+            return out;
+        } catch (IOException e) {
+            try { s.close(); } catch (IOException ignored) {}
+            throw e;
+        }
+    }
+
+    /**
+     * Connect again after the connection dropped. Waits are random up to an
+     * exponentially growing ceiling ("full jitter"), so clients dropped
+     * together by a restart do not all come back in the same instant.
+     */
+    private static OutputStream reconnect() throws InterruptedException {
+        try { socket.close(); } catch (IOException ignored) {}
+        String oldId = myId;
+        println("Disconnected from server. Reconnecting...");
+        String aborted = files.abortAll();
+        if (aborted != null) println(aborted);
+        OutputStream out;
+        for (int attempt = 0; ; attempt++) {
+            long ceiling = Math.min(RECONNECT_MAX_MS, RECONNECT_BASE_MS << Math.min(attempt, 16));
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+            try {
+                out = connect();
+                break;
+            } catch (IOException e) {
+                if (attempt == 0) println("Server unavailable (" + e.getMessage() + "); still trying...");
+            }
+        }
+
+        // Restore what the server forgot; a chat partner is just an ID on our side
+        if (!myId.equals(oldId)) println("Could not resume " + oldId + "; you are now " + myId);
+        if (activeRoom != null) send(out, new Message("ROOM_JOIN", activeRoom, myId, "Server"));
+        if (subscribed) send(out, new Message("SYSTEM", "/subscribe", myId, "Server"));
+        if (state == State.CHATTING && activePartnerId != null) println("Still chatting with " + activePartnerId);
+        return out;
+    }
+
+    // ---------------- latency probe ----------------
+
+    /** Returns false if nothing was sent (bad arguments). */
+    private static boolean startProbe(OutputStream out, String line) throws IOException {
+        String[] parts = line.split("\\s+");
+        int n = 10;
+        if (parts.length > 1) {
+            try {
+                n = Math.max(1, Integer.parseInt(parts[1]));
+            } catch (NumberFormatException e) {
+                println("Usage: /probe [count]");
+                return false;
+            }
+        }
+        probesLeft = n;
+        probesSent = 0;
+        probeTotal = new LatencyHistogram();
+        probeNetwork = new LatencyHistogram();
+        println("Probing " + n + " round trips through the server...");
+        sendProbe(out);
+        return true;
+    }
+
+    private static void sendProbe(OutputStream out) throws IOException {
+        probesLeft--;
+        probesSent++;
+        send(out, new Message("CHAT", PROBE_PREFIX + System.nanoTime(), myId, myId));
+    }
+
+    /**
+     * Render one probe result. Network is send to listener receipt; the
+     * total also covers the event queue hand-off and printing the line.
+     */
+    private static boolean onProbeReply(Message msg, long receivedNanos, OutputStream out) throws IOException {
+        long sent;
+        try {
+            sent = Long.parseLong(msg.getText().substring(PROBE_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        String line = String.format("probe %d: network %.3f ms", probesSent, (receivedNanos - sent) / 1e6);
+        println(line);
+        long rendered = System.nanoTime();
+        probeNetwork.record(receivedNanos - sent);
+        probeTotal.record(rendered - sent);
+
+        if (probesLeft > 0) {
+            sendProbe(out);
+            return true;
+        }
+        println(String.format("send-to-render p50 %.3f ms, p99 %.3f ms (network p50 %.3f ms, p99 %.3f ms) over %d probes",
+                probeTotal.percentile(0.5) / 1e6, probeTotal.percentile(0.99) / 1e6,
+                probeNetwork.percentile(0.5) / 1e6, probeNetwork.percentile(0.99) / 1e6, probesSent));
+        return false;
+    }
+
+    // ---------------- rendering ----------------
+
+    private static void startConversation(String header) {
+        chatHistory.clear();
+        chatHistory.add(header);
+        fullDrawPending = true;
+    }
+
+    /**
+     * Record a chat line and show it, leaving a fresh "You: " prompt. In
+     * incremental mode only the new line is printed; with ANSI the prompt
+     * line (and, for our own line, the echoed input above it) is rewritten.
+     */
+    private static void addChatLine(String line, boolean own) {
+        chatHistory.add(line);
+        String spillFailure = chatHistory.takeSpillFailure();
+        if (!incremental) {
+            redrawChat();
+            printPlain("You: ");
+        } else {
+            showChatLine(line, own);
+        }
+        if (spillFailure != null) addChatLine("* History spill disabled: " + spillFailure, false);
+    }
+
+    /** Incremental mode: print just the new line, then a fresh prompt. */
+    private static void showChatLine(String line, boolean own) {
+        scrollTop = chatHistory.end(); // /history pages back from the newest line
+        if (ansi) {
+            StringBuilder sb = new StringBuilder();
+            if (own) sb.append("\033[1A"); // up to the line the user just typed
+            sb.append("\r\033[2K").append(line).append('\n');
+            System.out.print(sb);
+        } else if (!own) {
+            System.out.println();
+            System.out.println(line);
+        }
+        printPlain("You: ");
+    }
+
+    /** Redraw the most recent screenful of history. */
     private static void redrawChat() {
         clearScreen();
-        for (String line : chatHistory) {
-            System.out.println(line);
+        List<String> recent = chatHistory.tail(Math.min(chatHistory.capacity(), 60));
+        scrollTop = chatHistory.end() - recent.size();
+        StringBuilder sb = new StringBuilder();
+        for (String line : recent) sb.append(line).append('\n');
+        System.out.print(sb);
+    }
+
+    /** Print the page of history just above what has been shown so far. */
+    private static void showEarlierHistory() {
+        long from = Math.max(chatHistory.first(), scrollTop - HISTORY_PAGE);
+        if (from >= scrollTop) {
+            println("(no earlier history)");
+            return;
         }
+        println("---- earlier ----");
+        for (String line : chatHistory.lines(from, (int) (scrollTop - from))) println(line);
+        println("-----------------");
+        scrollTop = from;
     }
 
     private static void clearScreen() {
-        // Portable "clear": lots of newlines (more reliable than ANSI across IDEs)
-        for (int i = 0; i < 60; i++) System.out.println();
+        if (ansi) {
+            printPlain("\033[H\033[2J");
+        } else {
+            // Portable "clear": lots of newlines (more reliable than ANSI across IDEs)
+            for (int i = 0; i < 60; i++) System.out.println();
+        }
     }
 
     private static void println(String s) {
@@ -270,9 +739,14 @@ public class Client {
         System.out.flush();
     }
 
+    /** Wait for a typed line; only used before the listener starts. */
     private static String takeLineBlocking() {
         try {
-            return inputQueue.take();
+            Event e;
+            do {
+                e = events.take();
+            } while (e.line == null);
+            return e.line;
         } catch (InterruptedException e) {
             return null;
         }
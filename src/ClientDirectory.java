@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Searchable view of the client table for /list, /find and presence.
+ *
+ * Clients are kept in a skip list ordered by lower-cased username, updated
+ * in place on every add and remove, so a page or a prefix search walks only
+ * the entries it returns. Each change bumps a version; rendered pages are
+ * cached per query and reused until the version moves, so repeated /list
+ * requests between changes cost a map lookup. Pages stop at MAX_PAGE, past
+ * the count limit, so no request walks further than that; a full cache
+ * makes room by dropping stale pages only, so a stream of distinct
+ * queries cannot flush the current ones.
+ *
+ * Subscribers get PRESENCE messages with the joins and leaves since the
+ * last push, coalesced every PRESENCE_INTERVAL_MS, instead of full lists.
+ */
+final class ClientDirectory {
+    static final int PAGE_SIZE = 50;
+    private static final int COUNT_LIMIT = 10_000;     // prefix counts stop here ("10000+")
+    static final int MAX_PAGE = COUNT_LIMIT / PAGE_SIZE + 1;
+    private static final int CACHE_MAX = 256;
+    private static final long PRESENCE_INTERVAL_MS = 250;
+    private static final int PRESENCE_MAX_LINES = 1000; // per message, to stay well under MAX_FRAME
+
+    // lower-cased username + '\0' + clientId -> connection
+    private static final ConcurrentSkipListMap<String, Connection> byName = new ConcurrentSkipListMap<>();
+    private static final AtomicLong version = new AtomicLong();
+    private static final ConcurrentHashMap<String, CachedPage> pages = new ConcurrentHashMap<>();
+
+    private static final Set<Connection> subscribers = ConcurrentHashMap.newKeySet();
+    private static final List<String> pendingDeltas = new ArrayList<>(); // guarded by itself
+    private static final AtomicBoolean pushScheduled = new AtomicBoolean();
+    private static final ScheduledExecutorService pusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "presence-push");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final class CachedPage {
+        final long version;
+        final String text;
+
+        CachedPage(long version, String text) {
+            this.version = version;
+            this.text = text;
+        }
+    }
+
+    private ClientDirectory() {}
+
+    static void add(Connection conn) {
+        byName.put(key(conn), conn);
+        version.incrementAndGet();
+        queueDelta("+" + conn.getClientId() + " " + conn.getUsername());
+    }
+
+    static void remove(Connection conn) {
+        if (byName.remove(key(conn), conn)) {
+            version.incrementAndGet();
+            subscribers.remove(conn);
+            queueDelta("-" + conn.getClientId() + " " + conn.getUsername());
+        }
+    }
+
+    /**
+     * One page (1-based) of clients whose username starts with prefix
+     * (case-insensitive; empty matches everyone), as SYSTEM_LIST text.
+     */
+    static String page(String prefix, int page) {
+        String p = prefix.toLowerCase(Locale.ROOT);
+        page = Math.min(Math.max(1, page), MAX_PAGE);
+        String cacheKey = p + '\0' + page;
+        long v = version.get();
+        CachedPage cached = pages.get(cacheKey);
+        if (cached != null && cached.version == v) return cached.text;
+
+        ConcurrentNavigableMap<String, Connection> matches = p.isEmpty() ? byName : byName.subMap(p, p + '\uffff');
+        int skip = (page - 1) * PAGE_SIZE;
+        StringBuilder rows = new StringBuilder(PAGE_SIZE * 32);
+        int seen = 0, shown = 0;
+        for (Connection c : matches.values()) {
+            if (seen >= skip && shown < PAGE_SIZE) {
+                rows.append(" - ").append(c.getUsername()).append(" (").append(c.getClientId()).append(")\n");
+                shown++;
+            }
+            if (++seen >= skip + PAGE_SIZE && seen >= COUNT_LIMIT) break;
+        }
+        String total = seen >= COUNT_LIMIT ? COUNT_LIMIT + "+" : String.valueOf(seen);
+
+        StringBuilder sb = new StringBuilder(rows.length() + 96);
+        sb.append(p.isEmpty() ? "Connected Clients" : "Clients matching '" + prefix + "'");
+        if (shown == 0) {
+            sb.append(" (").append(total).append("):\n  (none").append(seen > 0 ? " on page " + page : "").append(")\n");
+        } else {
+            sb.append(' ').append(skip + 1).append('-').append(skip + shown).append(" of ").append(total)
+                    .append(" (page ").append(page).append("):\n").append(rows);
+            if (seen > skip + shown) {
+                sb.append("  more: ").append(p.isEmpty() ? "/list " : "/find " + prefix + " ").append(page + 1).append('\n');
+            }
+        }
+        String text = sb.toString();
+        if (pages.size() >= CACHE_MAX) pages.values().removeIf(c -> c.version != v);
+        if (pages.size() < CACHE_MAX) pages.put(cacheKey, new CachedPage(v, text));
+        return text;
+    }
+
+    /** Start pushing presence deltas to conn. Returns false if already subscribed. */
+    static boolean subscribe(Connection conn) {
+        return subscribers.add(conn);
+    }
+
+    static boolean unsubscribe(Connection conn) {
+        return subscribers.remove(conn);
+    }
+
+    private static String key(Connection conn) {
+        return conn.getUsername().toLowerCase(Locale.ROOT) + '\0' + conn.getClientId();
+    }
+
+    private static void queueDelta(String delta) {
+        if (subscribers.isEmpty()) return;
+        synchronized (pendingDeltas) {
+            pendingDeltas.add(delta);
+        }
+        if (pushScheduled.compareAndSet(false, true)) {
+            pusher.schedule(ClientDirectory::pushDeltas, PRESENCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Send everything queued since the last push as one PRESENCE message per subscriber. */
+    private static void pushDeltas() {
+        pushScheduled.set(false);
+        List<String> deltas;
+        synchronized (pendingDeltas) {
+            if (pendingDeltas.isEmpty()) return;
+            deltas = new ArrayList<>(pendingDeltas);
+            pendingDeltas.clear();
+        }
+        for (int from = 0; from < deltas.size(); from += PRESENCE_MAX_LINES) {
+            String text = String.join("\n", deltas.subList(from, Math.min(deltas.size(), from + PRESENCE_MAX_LINES)));
+            byte[] frame = MessageCodec.encode(new Message("PRESENCE", text, "Server", null));
+            for (Connection c : subscribers) c.sendFrame(frame, false); // on the pusher thread: never wait
+        }
+    }
+}
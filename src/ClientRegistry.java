@@ -0,0 +1,160 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Server's client table, keyed by client number. Open addressing with
+ * linear probing over one array of connections: the key is the entry's own
+ * getClientNumber(), so there is no key array and nothing is boxed, and a
+ * lookup is a few array reads that never allocate.
+ *
+ * Lookups take no lock. Writers serialize on a lock and only ever turn a
+ * slot from null into an entry, or from an entry into TOMBSTONE and back,
+ * so a probe never stops short of an entry that is present. Tombstones are
+ * cleared by rebuilding into a fresh array, which is then published whole.
+ * Iteration is weakly consistent, like ConcurrentHashMap's.
+ */
+final class ClientRegistry implements Iterable<Connection> {
+    private static final int MIN_CAPACITY = 64;
+    private static final Object TOMBSTONE = new Object();
+
+    private volatile AtomicReferenceArray<Object> table = new AtomicReferenceArray<>(MIN_CAPACITY);
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile int size;
+    private int used; // live entries + tombstones; guarded by lock
+
+    Connection get(int number) {
+        AtomicReferenceArray<Object> t = table;
+        int mask = t.length() - 1;
+        for (int i = slot(number, mask); ; i = (i + 1) & mask) {
+            Object o = t.get(i);
+            if (o == null) return null;
+            if (o != TOMBSTONE && ((Connection) o).getClientNumber() == number) return (Connection) o;
+        }
+    }
+
+    boolean contains(int number) {
+        return get(number) != null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Add or replace the entry for conn's number. Returns the replaced connection, if any. */
+    Connection put(Connection conn) {
+        return insert(conn, true);
+    }
+
+    /** Add conn unless its number is taken. Returns the connection holding it, if any. */
+    Connection putIfAbsent(Connection conn) {
+        return insert(conn, false);
+    }
+
+    private Connection insert(Connection conn, boolean replace) {
+        int number = conn.getClientNumber();
+        lock.lock();
+        try {
+            if (used + 1 > table.length() / 2) rebuild(size + 1);
+            AtomicReferenceArray<Object> t = table;
+            int mask = t.length() - 1;
+            int free = -1;
+            for (int i = slot(number, mask); ; i = (i + 1) & mask) {
+                Object o = t.get(i);
+                if (o == null) {
+                    if (free < 0) {
+                        free = i;
+                        used++;
+                    }
+                    break;
+                }
+                if (o == TOMBSTONE) {
+                    if (free < 0) free = i;
+                } else if (((Connection) o).getClientNumber() == number) {
+                    if (replace) t.set(i, conn);
+                    return (Connection) o;
+                }
+            }
+            t.set(free, conn);
+            size++;
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Remove the entry for number if it is conn. */
+    boolean remove(int number, Connection conn) {
+        lock.lock();
+        try {
+            AtomicReferenceArray<Object> t = table;
+            int mask = t.length() - 1;
+            for (int i = slot(number, mask); ; i = (i + 1) & mask) {
+                Object o = t.get(i);
+                if (o == null) return false;
+                if (o == conn) {
+                    t.set(i, TOMBSTONE);
+                    size--;
+                    return true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<Connection> iterator() {
+        AtomicReferenceArray<Object> t = table;
+        return new Iterator<>() {
+            int i;
+            Connection next = advance();
+
+            private Connection advance() {
+                while (i < t.length()) {
+                    Object o = t.get(i++);
+                    if (o != null && o != TOMBSTONE) return (Connection) o;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Connection next() {
+                Connection c = next;
+                if (c == null) throw new NoSuchElementException();
+                next = advance();
+                return c;
+            }
+        };
+    }
+
+    /** Copy live entries into a table sized for at least 'entries' at load <= 1/4. Lock held. */
+    private void rebuild(int entries) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < entries * 4) capacity <<= 1;
+        AtomicReferenceArray<Object> old = table;
+        AtomicReferenceArray<Object> t = new AtomicReferenceArray<>(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < old.length(); j++) {
+            Object o = old.get(j);
+            if (o == null || o == TOMBSTONE) continue;
+            int i = slot(((Connection) o).getClientNumber(), mask);
+            while (t.get(i) != null) i = (i + 1) & mask;
+            t.set(i, o);
+        }
+        used = size;
+        table = t;
+    }
+
+    /** Numbers are sequential (and interleaved by node id), so spread them before masking. */
+    private static int slot(int number, int mask) {
+        int h = number * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,472 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLContext;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Node-to-node links for running several servers as one chat service.
+ *
+ * Every node listens on its cluster port and keeps one persistent outbound
+ * link to each configured peer; a link carries traffic in one direction
+ * only, so two peers talk over two sockets and no link needs deduplicating.
+ * Outbound frames go through an OutboundQueue and a writer thread that
+ * writes them in batches with one flush, like a client connection.
+ *
+ * The client directory is replicated: each node announces its own clients
+ * (JOIN/LEAVE, plus a full snapshot whenever a link comes up) and every
+ * other node mirrors them as RemoteConnection entries in Server's table.
+ * Routing is then unchanged: sending to a RemoteConnection queues a ROUTE
+ * frame carrying the already encoded client frame to the owning node.
+ * Announcements never wait for link queue space (they are made on event
+ * loops, under a lock every join and leave takes): a link too far behind
+ * to take one is dropped and reconnected, and its fresh snapshot replaces
+ * whatever it missed.
+ *
+ * Client numbers are interleaved by node id (n * MAX_NODES + nodeId), so
+ * IDs are unique cluster-wide without coordination, and a node may only
+ * announce, and send from, numbers of its own. Only the newest inbound
+ * link from a peer counts: it replaces the previous one and what that one
+ * announced, and a replaced reader leaves the directory alone.
+ *
+ * Links are trusted with the directory and with routing, so a node must
+ * prove it holds the cluster secret before either side sends anything
+ * else: the connecting node sends HELLO with its id and a nonce, the
+ * accepting node answers with its id, a nonce and an HMAC of both nonces
+ * under the secret, and the connecting node answers with its own HMAC.
+ * The cluster port listens on loopback unless --cluster-bind says
+ * otherwise, and with --tls links run over TLS too, trusting the
+ * certificates in the truststore next to the keystore.
+ *
+ * Link frame: [int length][byte kind][payload], where length covers kind
+ * and payload. Clients are named by their number; usernames use
+ * DataOutput.writeUTF.
+ */
+final class Cluster {
+    static final int MAX_NODES = 16;
+
+    private static final byte HELLO = 0; // [int nodeId][nonce], answered as in the class comment
+    private static final byte JOIN = 1;  // [int client number][utf username]
+    private static final byte LEAVE = 2; // [int client number]
+    private static final byte ROUTE = 3; // [int to][client frame]
+
+    private static final int LINK_QUEUE = 64 * 1024;
+    private static final long LINK_BLOCK_MS = 1000;
+    private static final long RETRY_MIN_MS = 100, RETRY_MAX_MS = 5000;
+    private static final int NONCE_BYTES = 16;
+    private static final int MAC_BYTES = 32;
+    private static final int HANDSHAKE_TIMEOUT_MS = 10_000;
+    private static final SecureRandom random = new SecureRandom();
+
+    private static volatile SecretKeySpec secret;
+    private static volatile SSLContext linkTls; // client side of links; null without --tls
+
+    private static volatile int nodeId = -1;
+    private static final Link[] links = new Link[MAX_NODES]; // by peer node id; guarded by announceLock
+    // Orders directory announcements against link snapshots, so a LEAVE can
+    // never be queued ahead of the JOIN it cancels
+    private static final ReentrantLock announceLock = new ReentrantLock();
+    private static final Socket[] inbound = new Socket[MAX_NODES]; // current link from each peer
+    private static final Object[] inboundLocks = new Object[MAX_NODES]; // guard inbound[peer] and its frames
+
+    static {
+        Arrays.setAll(inboundLocks, i -> new Object());
+    }
+
+    private Cluster() {}
+
+    static boolean enabled() {
+        return nodeId >= 0;
+    }
+
+    static int nodeId() {
+        return nodeId;
+    }
+
+    /** Cluster-wide client number for this node's n-th client. */
+    static int globalNumber(int n) {
+        return n * MAX_NODES + nodeId;
+    }
+
+    /**
+     * Listen for peers on the cluster port (if set) and keep links to each
+     * "host:port" peer. tls is the server's context, or null for plain links.
+     */
+    static void start(ServerOptions options, SSLContext tls) throws IOException {
+        int id = options.nodeId;
+        if (id < 0 || id >= MAX_NODES) throw new IllegalArgumentException("node id must be 0.." + (MAX_NODES - 1));
+        String key = options.clusterSecretFile != null
+                ? Files.readString(Paths.get(options.clusterSecretFile)).trim() : options.clusterSecret;
+        if (key.isEmpty()) throw new IOException("cluster secret is empty");
+        secret = new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+        if (tls != null) {
+            Path trust = Tls.trustStoreFor(Paths.get(options.tlsKeystore));
+            linkTls = Tls.clientContext(Files.exists(trust) ? trust : null, options.tlsPassword.toCharArray());
+        }
+        nodeId = id;
+        if (options.clusterPort >= 0) {
+            InetAddress bind = options.clusterBind == null
+                    ? InetAddress.getLoopbackAddress() : InetAddress.getByName(options.clusterBind);
+            ServerSocket ss;
+            if (tls != null) {
+                ss = Tls.serverSocket(tls, options.clusterPort, bind);
+            } else {
+                ss = new ServerSocket();
+                ss.bind(new InetSocketAddress(bind, options.clusterPort), 64);
+            }
+            Thread acceptor = new Thread(() -> acceptLoop(ss), "cluster-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        for (String peer : options.peers) {
+            int colon = peer.lastIndexOf(':');
+            Link link = new Link(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+            Thread t = new Thread(link::run, "cluster-link-" + peer);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    // ---------------- directory announcements ----------------
+
+    static void announceJoin(Connection conn) {
+        broadcast(joinFrame(conn));
+    }
+
+    static void announceLeave(int number) {
+        broadcast(frame(LEAVE, number, null));
+    }
+
+    private static void broadcast(byte[] frame) {
+        announceLock.lock();
+        try {
+            for (Link link : links) {
+                if (link != null && link.queue.offer(frame, false) != OutboundQueue.Offer.QUEUED) link.resync();
+            }
+        } finally {
+            announceLock.unlock();
+        }
+    }
+
+    // ---------------- outbound links ----------------
+
+    /** Persistent outbound link to one peer; reconnects with backoff. */
+    static final class Link {
+        final String host;
+        final int port;
+        final OutboundQueue queue = new OutboundQueue(LINK_QUEUE, OutboundQueue.Overflow.BLOCK, LINK_BLOCK_MS, false);
+        volatile int peer = -1;
+        private volatile Socket socket;
+        private boolean resync; // reconnecting to resync; guarded by announceLock
+
+        Link(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        void run() {
+            long retry = RETRY_MIN_MS;
+            byte[][] batch = new byte[256][];
+            while (true) {
+                try (Socket socket = linkTls != null ? Tls.clientSocket(linkTls, host, port) : new Socket(host, port)) {
+                    this.socket = socket;
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    byte[] nonce = nonce();
+                    out.writeInt(1 + 4 + NONCE_BYTES);
+                    out.writeByte(HELLO);
+                    out.writeInt(nodeId);
+                    out.write(nonce);
+                    out.flush();
+                    int peerId = in.readInt();
+                    byte[] peerNonce = in.readNBytes(NONCE_BYTES);
+                    byte[] peerMac = in.readNBytes(MAC_BYTES);
+                    if (!MessageDigest.isEqual(peerMac, mac('A', nonce, peerNonce, peerId))) {
+                        throw new IOException("peer at " + host + ":" + port + " does not know the cluster secret");
+                    }
+                    if (peerId == nodeId || peerId < 0 || peerId >= MAX_NODES) {
+                        throw new IOException("peer at " + host + ":" + port + " has node id " + peerId);
+                    }
+                    out.write(mac('C', peerNonce, nonce, nodeId));
+                    out.flush();
+                    socket.setSoTimeout(0);
+                    up(peerId);
+                    retry = RETRY_MIN_MS;
+                    Log.info("Cluster link to node " + peerId + " (" + host + ":" + port + ") up");
+
+                    int n;
+                    while ((n = queue.awaitBatch(batch)) > 0) {
+                        for (int i = 0; i < n; i++) {
+                            out.write(batch[i]);
+                            batch[i] = null;
+                        }
+                        out.flush();
+                        if (Metrics.enabled()) Metrics.clusterFramesSent.add(n);
+                    }
+                    return; // queue closed
+                } catch (IOException e) {
+                    if (down()) Log.warn("Cluster link to node " + peer + " down: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(retry);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                retry = Math.min(RETRY_MAX_MS, retry * 2);
+            }
+        }
+
+        /** Publish this link and queue a snapshot of our clients ahead of any later announcement. */
+        private void up(int peerId) {
+            announceLock.lock();
+            try {
+                peer = peerId;
+                links[peerId] = this;
+                // Whatever was queued predates the snapshot below, which supersedes it:
+                // the peer forgets our clients when the previous link closes
+                resync = false;
+                queue.clear();
+                // Not blocking: the writer that would make room is this thread
+                for (Connection c : Server.localClients()) {
+                    queue.offer(joinFrame(c), false);
+                }
+            } finally {
+                announceLock.unlock();
+            }
+        }
+
+        /**
+         * Drop the connection so it comes back with a full snapshot; the
+         * peer forgets our clients when it closes. Lock held.
+         */
+        private void resync() {
+            if (resync) return;
+            resync = true;
+            Log.warn("Cluster link to node " + peer + " fell behind; reconnecting to resync");
+            Socket s = socket;
+            if (s != null) {
+                try { s.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        /** Unpublish this link. Returns false if it was not up. */
+        private boolean down() {
+            announceLock.lock();
+            try {
+                if (peer < 0 || links[peer] != this) return false;
+                links[peer] = null;
+                return true;
+            } finally {
+                announceLock.unlock();
+            }
+        }
+    }
+
+    // ---------------- inbound links ----------------
+
+    private static void acceptLoop(ServerSocket ss) {
+        while (true) {
+            Socket socket;
+            try {
+                socket = ss.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread t = new Thread(() -> readLoop(socket), "cluster-in-" + socket.getRemoteSocketAddress());
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private static void readLoop(Socket socket) {
+        int peer = -1;
+        try (socket) {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            if (in.readInt() != 1 + 4 + NONCE_BYTES || in.readByte() != HELLO) throw new IOException("expected HELLO");
+            int claimed = in.readInt();
+            byte[] peerNonce = in.readNBytes(NONCE_BYTES);
+            byte[] nonce = nonce();
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(nodeId);
+            out.write(nonce);
+            out.write(mac('A', peerNonce, nonce, nodeId));
+            out.flush();
+            if (!MessageDigest.isEqual(in.readNBytes(MAC_BYTES), mac('C', nonce, peerNonce, claimed))) {
+                throw new IOException("link from " + socket.getRemoteSocketAddress() + " failed authentication");
+            }
+            if (claimed == nodeId || claimed < 0 || claimed >= MAX_NODES) throw new IOException("bad peer node id " + claimed);
+            peer = claimed;
+            socket.setSoTimeout(0);
+            claimInbound(peer, socket);
+
+            byte[] body = new byte[256];
+            while (true) {
+                int len = in.readInt();
+                MessageCodec.checkLength(len);
+                if (body.length < len) body = new byte[Math.max(len, body.length * 2)];
+                in.readFully(body, 0, len);
+                if (Metrics.enabled()) Metrics.clusterFramesReceived.increment();
+                synchronized (inboundLocks[peer]) {
+                    if (inbound[peer] != socket) return; // a newer link from this peer took over
+                    onFrame(peer, body, len);
+                }
+            }
+        } catch (EOFException | SocketException e) {
+            // peer went away
+        } catch (IOException e) {
+            Log.warn("Cluster link from node " + peer + " failed: " + e.getMessage());
+        } finally {
+            if (peer >= 0) releaseInbound(peer, socket);
+        }
+    }
+
+    /** Make socket the current link from peer, closing the previous one and forgetting what it announced. */
+    private static void claimInbound(int peer, Socket socket) {
+        synchronized (inboundLocks[peer]) {
+            Socket previous = inbound[peer];
+            inbound[peer] = socket;
+            if (previous != null) {
+                try { previous.close(); } catch (IOException ignored) {}
+                Server.removeNode(peer);
+            }
+        }
+    }
+
+    /** Forget peer's clients, unless a newer link from it has replaced socket. */
+    private static void releaseInbound(int peer, Socket socket) {
+        synchronized (inboundLocks[peer]) {
+            if (inbound[peer] != socket) return;
+            inbound[peer] = null;
+            Server.removeNode(peer);
+        }
+    }
+
+    /** Whether a client number was issued by node. */
+    static boolean ownedBy(int number, int node) {
+        return number >= 0 && number % MAX_NODES == node;
+    }
+
+    private static void onFrame(int peer, byte[] body, int len) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, 1, len - 1));
+        switch (body[0]) {
+            case JOIN: {
+                int number = in.readInt();
+                String username = in.readUTF();
+                if (!ownedBy(number, peer)) {
+                    Log.warn("Ignoring JOIN of " + Message.clientId(number) + " from node " + peer);
+                } else {
+                    Server.addRemote(new RemoteConnection(number, username, peer));
+                }
+                break;
+            }
+            case LEAVE: {
+                int number = in.readInt();
+                if (!ownedBy(number, peer)) {
+                    Log.warn("Ignoring LEAVE of " + Message.clientId(number) + " from node " + peer);
+                } else {
+                    Server.removeRemote(number);
+                }
+                break;
+            }
+            case ROUTE: {
+                int to = in.readInt();
+                byte[] frame = Arrays.copyOfRange(body, 1 + 4, len);
+                int from = MessageCodec.frameSender(frame);
+                if (from != Message.NO_CLIENT && !ownedBy(from, peer)) {
+                    Log.warn("Ignoring frame from " + Message.clientId(from) + " routed by node " + peer);
+                } else {
+                    Server.deliverRouted(to, frame);
+                }
+                break;
+            }
+            default:
+                throw new IOException("unknown link frame kind " + body[0]);
+        }
+    }
+
+    /** Queue a client frame for a client on another node. False if that node is unreachable. */
+    static boolean route(int node, int to, byte[] clientFrame, boolean mayBlock) {
+        Link link = links[node];
+        if (link == null) return false;
+        return link.queue.offer(frame(ROUTE, to, clientFrame), mayBlock) == OutboundQueue.Offer.QUEUED;
+    }
+
+    static OutboundQueue queueTo(int node) {
+        Link link = links[node];
+        return link == null ? null : link.queue;
+    }
+
+    /** LEAVE or ROUTE frame, built directly: these are the per-message and per-disconnect ones. */
+    private static byte[] frame(byte kind, int number, byte[] tail) {
+        int tailLength = tail == null ? 0 : tail.length;
+        byte[] frame = new byte[4 + 1 + 4 + tailLength];
+        putInt(frame, 0, frame.length - 4);
+        frame[4] = kind;
+        putInt(frame, 5, number);
+        if (tail != null) System.arraycopy(tail, 0, frame, 9, tailLength);
+        return frame;
+    }
+
+    private static byte[] joinFrame(Connection conn) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0); // length, patched below
+            out.writeByte(JOIN);
+            out.writeInt(conn.getClientNumber());
+            out.writeUTF(conn.getUsername());
+            byte[] frame = bytes.toByteArray();
+            putInt(frame, 0, frame.length - 4);
+            return frame;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream does not throw
+        }
+    }
+
+    private static byte[] nonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    /** A handshake answer: HMAC under the cluster secret of the signer's role ('A'ccept or 'C'onnect), the nonces and its id. */
+    private static byte[] mac(char role, byte[] theirNonce, byte[] ownNonce, int node) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            mac.update((byte) role);
+            mac.update(theirNonce);
+            mac.update(ownNonce);
+            byte[] id = new byte[4];
+            putInt(id, 0, node);
+            return mac.doFinal(id);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e); // HmacSHA256 is always available
+        }
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+}
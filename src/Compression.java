@@ -0,0 +1,200 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional deflate of frames on one client connection, negotiated in the
+ * username handshake: a client that can take compressed frames sets
+ * FLAG_DEFLATE_OK on its intro frame, and a server that agrees (the
+ * default; --compression=off refuses) sets it on the first frame it sends
+ * back. Each side then may send FLAG_DEFLATE frames, whose payload is
+ * deflated, and must decode them from the other. Both handshake frames
+ * also carry DICTIONARY_VERSION in the DICTIONARY_SHIFT bits; an offer
+ * for another dictionary is not accepted, so the two sides never inflate
+ * with different dictionaries.
+ *
+ * Chat messages are far too small to compress one by one, so each
+ * direction of a connection is one raw deflate stream, sync-flushed at
+ * the end of every frame: a message can refer back to everything sent
+ * before it on the connection. The stream starts from a preset dictionary
+ * of what every connection repeats (the Java-serialized form of a Message,
+ * server notices, common chat words), so even the first messages shrink.
+ * The dictionary is a fixed literal: if Message's serialized form changes,
+ * compression gets worse but never wrong. Changing the literal means a new
+ * DICTIONARY_VERSION.
+ * The 00 00 FF FF that ends every sync flush is left off the wire and put
+ * back by the reader, as in WebSocket's permessage-deflate.
+ *
+ * Frames below the threshold (--compress-min, default 32 bytes of payload)
+ * and file chunks are sent as they are; they do not touch the stream.
+ * Compression happens where frames are written, in order, so a frame
+ * encoded once for many recipients is compressed per connection and the
+ * shared array is never modified. Not thread-safe: the deflate side
+ * belongs to the connection's writer, the inflate side to its reader.
+ * Both are created on first use, since zlib state costs a few hundred KB.
+ */
+final class Compression {
+    static final int DEFAULT_THRESHOLD = 32;
+    static final int LEVEL = Deflater.BEST_SPEED;
+    static final int DICTIONARY_VERSION = 1;  // 1..3, see MessageCodec.DICTIONARY_SHIFT
+    // Handshake flags that offer (or accept) compression with this dictionary
+    static final int OFFER_FLAGS = MessageCodec.FLAG_DEFLATE_OK | DICTIONARY_VERSION << MessageCodec.DICTIONARY_SHIFT;
+
+    private static final byte[] FLUSH_TAIL = {0, 0, (byte) 0xFF, (byte) 0xFF};
+    private static final byte[] DICTIONARY = dictionary();
+
+    private final int level;
+    private final int threshold;
+    private boolean announce;     // set FLAG_DEFLATE_OK on the next frame written
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] scratch;       // deflate output before trimming, reused
+    private byte[] inflated;      // inflate output before trimming, reused
+
+    private long plainBytes;      // payload bytes of compressed frames, before and after
+    private long compressedBytes;
+
+    /**
+     * announce: this side accepts the peer's offer, so the first frame it
+     * writes says so (the server).
+     */
+    Compression(int level, int threshold, boolean announce) {
+        this.level = level;
+        this.threshold = threshold;
+        this.announce = announce;
+    }
+
+    /** Whether a frame with these flags offers (or accepts) compression with this dictionary. */
+    static boolean offered(int flags) {
+        return (flags & (MessageCodec.FLAG_DEFLATE_OK | MessageCodec.DICTIONARY_BITS)) == OFFER_FLAGS;
+    }
+
+    /** Whether a frame body (flags + payload) is deflated. */
+    static boolean isCompressed(byte[] buf, int off, int len) {
+        return len > 0 && (buf[off] & MessageCodec.FLAG_DEFLATE) != 0;
+    }
+
+    /** The frame to write in place of frame. The argument is never modified. Writer only. */
+    byte[] compress(byte[] frame) {
+        int payload = frame.length - MessageCodec.HEADER_BYTES - 1;
+        if (payload < threshold || MessageCodec.frameTypeCode(frame) == MessageCodec.FILE_CHUNK) {
+            if (!announce) return frame;
+            announce = false;
+            byte[] marked = frame.clone();
+            marked[MessageCodec.HEADER_BYTES] |= OFFER_FLAGS;
+            return marked;
+        }
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+            deflater.setDictionary(DICTIONARY);
+        }
+        int start = MessageCodec.HEADER_BYTES + 1;
+        if (scratch == null || scratch.length < start + payload + 64) {
+            scratch = new byte[start + payload + Math.max(64, payload >> 3)];
+        }
+        deflater.setInput(frame, start, payload);
+        int n = start;
+        while (true) {
+            n += deflater.deflate(scratch, n, scratch.length - n, Deflater.SYNC_FLUSH);
+            if (n < scratch.length) break;
+            scratch = Arrays.copyOf(scratch, scratch.length * 2);
+        }
+        n -= FLUSH_TAIL.length;
+        byte[] out = Arrays.copyOf(scratch, n);
+        MessageCodec.writeLength(out, n - MessageCodec.HEADER_BYTES);
+        int flags = frame[MessageCodec.HEADER_BYTES] | MessageCodec.FLAG_DEFLATE;
+        if (announce) {
+            flags |= OFFER_FLAGS;
+            announce = false;
+        }
+        out[MessageCodec.HEADER_BYTES] = (byte) flags;
+        plainBytes += payload;
+        compressedBytes += n - start;
+        return out;
+    }
+
+    /**
+     * Decompress a FLAG_DEFLATE frame body (flags + payload) read off the
+     * wire into a complete plain frame, length prefix included. Reader only.
+     */
+    byte[] inflate(byte[] buf, int off, int len) throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater(true);
+            inflater.setDictionary(DICTIONARY);
+            inflated = new byte[4096];
+        }
+        inflated[MessageCodec.HEADER_BYTES] = (byte) (buf[off] & ~MessageCodec.FLAG_DEFLATE);
+        int n = MessageCodec.HEADER_BYTES + 1;
+        try {
+            inflater.setInput(buf, off + 1, len - 1);
+            n = drain(n);
+            inflater.setInput(FLUSH_TAIL);
+            n = drain(n);
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed frame: " + e.getMessage(), e);
+        }
+        byte[] frame = Arrays.copyOf(inflated, n);
+        MessageCodec.writeLength(frame, n - MessageCodec.HEADER_BYTES);
+        return frame;
+    }
+
+    /** Inflate all the current input yields into 'inflated' from n. Returns the new length. */
+    private int drain(int n) throws DataFormatException, IOException {
+        while (true) {
+            if (n == inflated.length) {
+                if (n > MessageCodec.HEADER_BYTES + MessageCodec.MAX_FRAME) throw new IOException("Compressed frame too large");
+                inflated = Arrays.copyOf(inflated, n * 2);
+            }
+            int k = inflater.inflate(inflated, n, inflated.length - n);
+            if (k == 0) return n;
+            n += k;
+        }
+    }
+
+    /** Payload bytes this side compressed, and what they came to. */
+    long plainBytes() { return plainBytes; }
+    long compressedBytes() { return compressedBytes; }
+
+    /** Free the deflate state now rather than when this is collected. Writer only, when done. */
+    void endWriter() {
+        if (deflater != null) deflater.end();
+    }
+
+    /** Free the inflate state. Reader only, when done. */
+    void endReader() {
+        if (inflater != null) inflater.end();
+    }
+
+    /**
+     * What a connection is likely to say, most common last (deflate codes
+     * nearer distances in fewer bits): a Java-serialized Message for
+     * --serialization=java peers, then server notices and chat words.
+     * Version 1; never edit in place (see DICTIONARY_VERSION).
+     */
+    private static byte[] dictionary() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        bytes.writeBytes(HexFormat.of().parseHex(
+            "aced0005737200074d65737361676519aaf70edd3759c00300054c000763726561746564"
+            + "7400104c6a6176612f7574696c2f446174653b4c000466726f6d7400124c6a6176612f6c"
+            + "616e672f537472696e673b4c00047465787471007e00024c0002746f71007e00024c0004"
+            + "7479706571007e000278707372000e6a6176612e7574696c2e44617465686a81014b5974"
+            + "1903000078707708000000000000000078740007436c69656e743174000f526571756573"
+            + "74696e672063686174740007436c69656e743274000f434f4e4e4543545f524551554553"
+            + "5478"));
+        String words = "Connected Clients (page ):\n - Clients matching more: /list /find "
+                + "Recipient not available: No such client ID: Invalid 'from' ID. Your ID is "
+                + "is offline; message saved for delivery You have message(s) received while offline "
+                + "Welcome back ! Your ID is Client joined left the room Requesting chat Accepted Denied "
+                + "would could should about there their think really going because right what when where "
+                + "know just like good time been have with this that they from your will then them "
+                + "yes no ok okay lol thanks thank you please sorry hello hi hey sure see you later "
+                + "the and you for are not but all can how was one out get now its it's I'm don't ";
+        bytes.writeBytes(words.getBytes(StandardCharsets.UTF_8));
+        return bytes.toByteArray();
+    }
+}
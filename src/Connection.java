@@ -0,0 +1,72 @@
+/**
+ * A registered chat client as seen by the router. Implemented by the
+ * thread-per-connection ClientHandler and by the selector-driven
+ * NioConnection, so Server.forwardMessage does not care which mode is running.
+ */
+interface Connection {
+    /** The routing key; unique cluster-wide. */
+    int getClientNumber();
+
+    /** Display form of the client number ("Client" + n), built once per connection. */
+    String getClientId();
+
+    /**
+     * Take over another client number (a reconnecting client's previous one).
+     * Only before the handshake registers the connection.
+     */
+    void setClientNumber(int number);
+
+    String getUsername();
+    void setUsername(String username);
+
+    /** Frames waiting to be written to this client, with its depth and drop counters. */
+    OutboundQueue getOutbound();
+
+    /** Queue a message for this client. Never throws; failures are logged. */
+    default void sendMessage(Message msg) {
+        sendFrame(MessageCodec.encode(msg));
+    }
+
+    /**
+     * Queue an already encoded frame. The array may be shared with other
+     * recipients (room broadcasts encode once), so it must not be modified.
+     * Waits for queue space under --overflow=block unless called on an
+     * event loop.
+     */
+    default void sendFrame(byte[] frame) {
+        sendFrame(frame, mayBlock());
+    }
+
+    /**
+     * Queue a frame, waiting for space under --overflow=block only if
+     * mayBlock; otherwise a full queue drops it. Threads shared by every
+     * client (event loops, timers, fan-out work on their behalf) pass false.
+     */
+    void sendFrame(byte[] frame, boolean mayBlock);
+
+    /** Whether the current thread may wait on a client's queue: anything but an event loop. */
+    static boolean mayBlock() {
+        return !(Thread.currentThread() instanceof NioServer.EventLoop);
+    }
+
+    /**
+     * Queue a FILE_CHUNK frame behind this client's other traffic (the bulk
+     * lane of its OutboundQueue). Entries without a lane of their own send
+     * it like any frame.
+     */
+    default void sendBulkFrame(byte[] frame) {
+        sendFrame(frame);
+    }
+
+    /**
+     * Close once the frames already queued have been written (shutdown
+     * drain). Any thread; returns at once, see isOpen. A no-op for entries
+     * without a socket of their own.
+     */
+    default void drainAndClose() {}
+
+    /** False once the connection's socket is closed, or if it has none. */
+    default boolean isOpen() {
+        return false;
+    }
+}
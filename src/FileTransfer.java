@@ -0,0 +1,435 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Client side of sending files to a chat partner (/send, /accept, /reject,
+ * /cancel while chatting with someone):
+ *
+ *   sender                                   receiver
+ *   FILE_OFFER  "id size name"          ->
+ *                                       <-   FILE_ACCEPT "id credit"  (or FILE_CANCEL "id reason")
+ *   FILE_CHUNK  "id offset" + data      ->   while credit lasts
+ *                                       <-   FILE_CREDIT "id bytes"   as chunks are written out
+ *
+ * Either side may FILE_CANCEL "id reason" at any point; the server sends
+ * one on behalf of a partner that has gone. The id is picked at random by
+ * the sender, so both directions can run between the same two clients.
+ *
+ * Flow control is end to end: the sender never has more than the
+ * receiver's window in flight, so however large the file, the server
+ * holds at most that much of it for the receiver (in the bulk lane of its
+ * OutboundQueue) and chat lines are not stuck behind it. Chunks are read
+ * with positional FileChannel reads on a thread per outgoing transfer, and
+ * written at their offset on the receiving side; a chunk that is not at
+ * the expected offset means one was lost, which cancels the transfer. A
+ * transfer that makes no progress for STALL_SECONDS (the other side died
+ * without a word) is cancelled from either end.
+ *
+ * Everything but the sender threads runs on the client's main loop. The
+ * threads report through the notices callback, since only the main loop
+ * prints.
+ */
+final class FileTransfer {
+    static final int CHUNK_SIZE = 16 * 1024;
+    static final int WINDOW = 16 * CHUNK_SIZE;    // receiver's credit: 256 KB in flight per transfer
+    static final int STALL_SECONDS = 30;
+    private static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(STALL_SECONDS);
+
+    /** Writes a message on the current connection; safe to call from any thread. */
+    interface Sender {
+        void send(Message msg) throws IOException;
+    }
+
+    private final Path downloads;
+    private final Sender sender;
+    private final Consumer<String> notices;
+    private final Map<String, Outgoing> outgoing = new ConcurrentHashMap<>(); // by id
+    private final Map<String, Incoming> incoming = new LinkedHashMap<>();     // by peer + " " + id; main loop only
+
+    FileTransfer(Path downloads, Sender sender, Consumer<String> notices) {
+        this.downloads = downloads;
+        this.sender = sender;
+        this.notices = notices;
+    }
+
+    /**
+     * Handle a typed line while chatting with peer. Returns what to show, or
+     * null if the line is not a file command (so it is sent as chat).
+     */
+    String command(String line, String myId, String peer) {
+        String[] parts = line.trim().split("\\s+", 2);
+        switch (parts[0].toLowerCase(Locale.ROOT)) {
+            case "/send":
+                return parts.length < 2 ? "Usage: /send <path>" : offer(Paths.get(parts[1]), myId, peer);
+            case "/accept":
+                return accept(myId, peer);
+            case "/reject":
+                return reject(myId, peer);
+            case "/cancel":
+                return cancel(myId, peer);
+            default:
+                return null;
+        }
+    }
+
+    private String offer(Path path, String myId, String peer) {
+        long size;
+        try {
+            if (!Files.isRegularFile(path)) return "Not a file: " + path;
+            size = Files.size(path);
+        } catch (IOException e) {
+            return "Cannot send " + path + ": " + e.getMessage();
+        }
+        String id = Integer.toHexString(ThreadLocalRandom.current().nextInt());
+        Outgoing o = new Outgoing(id, path, size, myId, peer);
+        outgoing.put(id, o);
+        send(new Message("FILE_OFFER", id + " " + size + " " + o.name, myId, peer));
+        return "Offered " + o.name + " (" + format(size) + ") to " + peer + "; waiting for them to accept";
+    }
+
+    private String accept(String myId, String peer) {
+        Incoming in = pending(peer);
+        if (in == null) return "No file offered by " + peer;
+        try {
+            Files.createDirectories(downloads);
+            in.path = unique(downloads, in.name);
+            in.channel = FileChannel.open(in.path, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        } catch (IOException e) {
+            incoming.remove(in.key());
+            send(new Message("FILE_CANCEL", in.id + " receiver could not save the file", myId, peer));
+            return "Cannot save " + in.name + ": " + e.getMessage();
+        }
+        in.started = in.lastChunk = System.nanoTime();
+        send(new Message("FILE_ACCEPT", in.id + " " + WINDOW, myId, peer));
+        return "Receiving " + in.name + " (" + format(in.size) + ") into " + in.path;
+    }
+
+    private String reject(String myId, String peer) {
+        Incoming in = pending(peer);
+        if (in == null) return "No file offered by " + peer;
+        incoming.remove(in.key());
+        send(new Message("FILE_CANCEL", in.id + " declined", myId, peer));
+        return "Declined " + in.name;
+    }
+
+    /** Cancel every transfer with peer, in both directions. */
+    private String cancel(String myId, String peer) {
+        int n = 0;
+        for (Iterator<Incoming> it = incoming.values().iterator(); it.hasNext(); ) {
+            Incoming in = it.next();
+            if (!in.peer.equals(peer)) continue;
+            it.remove();
+            in.discard();
+            send(new Message("FILE_CANCEL", in.id + " cancelled", myId, peer));
+            n++;
+        }
+        for (Outgoing o : outgoing.values()) {
+            if (!o.peer.equals(peer)) continue;
+            outgoing.remove(o.id);
+            o.cancel();
+            send(new Message("FILE_CANCEL", o.id + " cancelled", myId, peer));
+            n++;
+        }
+        return n == 0 ? "No file transfers with " + peer : "Cancelled " + n + " file transfer(s)";
+    }
+
+    /**
+     * Handle a FILE_* message. partner is who we are chatting with (offers
+     * from anyone else are declined). Returns what to show, or null.
+     */
+    String onMessage(Message msg, String myId, String partner) {
+        String peer = msg.getFrom();
+        String text = msg.getText() == null ? "" : msg.getText();
+        String[] parts = text.split(" ", 3);
+        String id = parts[0];
+        try {
+            switch (msg.getType()) {
+                case "FILE_OFFER": {
+                    String name = parts.length > 2 ? parts[2] : "file";
+                    if (!peer.equals(partner)) {
+                        send(new Message("FILE_CANCEL", id + " not chatting with you", myId, peer));
+                        return "Declined " + name + " from " + peer + " (not chatting with them)";
+                    }
+                    Incoming in = new Incoming(peer, id, Long.parseLong(parts[1]), name);
+                    incoming.put(in.key(), in);
+                    return peer + " offers " + in.name + " (" + format(in.size) + "): /accept or /reject";
+                }
+                case "FILE_ACCEPT":
+                case "FILE_CREDIT": {
+                    Outgoing o = outgoing.get(id);
+                    if (o == null || !o.peer.equals(peer)) return null;
+                    o.grant(Long.parseLong(parts[1]));
+                    if (!"FILE_ACCEPT".equals(msg.getType()) || o.started) return null;
+                    o.started = true;
+                    Thread t = new Thread(o, "file-" + id);
+                    t.setDaemon(true);
+                    t.start();
+                    return peer + " accepted " + o.name + "; sending";
+                }
+                case "FILE_CHUNK":
+                    return onChunk(msg, myId, peer, id, Long.parseLong(parts[1]));
+                case "FILE_CANCEL": {
+                    String reason = text.indexOf(' ') < 0 ? "cancelled" : text.substring(text.indexOf(' ') + 1);
+                    Incoming in = incoming.remove(peer + " " + id);
+                    if (in != null) {
+                        in.discard();
+                        return "Transfer of " + in.name + " stopped: " + reason;
+                    }
+                    Outgoing o = outgoing.get(id);
+                    if (o != null && o.peer.equals(peer)) {
+                        outgoing.remove(id);
+                        o.cancel();
+                        return "Transfer of " + o.name + " stopped: " + reason;
+                    }
+                    return null;
+                }
+                default:
+                    return null;
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return "Bad " + msg.getType() + " from " + peer + ": " + text;
+        }
+    }
+
+    private String onChunk(Message msg, String myId, String peer, String id, long offset) {
+        Incoming in = incoming.get(peer + " " + id);
+        if (in == null || in.channel == null) return null; // cancelled, or never accepted
+        byte[] data = msg.getData() == null ? new byte[0] : msg.getData();
+        String failure = null;
+        if (offset != in.received || in.received + data.length > in.size) {
+            failure = "chunk at " + offset + ", expected " + in.received;
+        } else {
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                while (buf.hasRemaining()) in.channel.write(buf, offset + buf.position());
+            } catch (IOException e) {
+                failure = "write failed: " + e.getMessage();
+            }
+        }
+        if (failure != null) {
+            incoming.remove(in.key());
+            in.discard();
+            send(new Message("FILE_CANCEL", id + " " + failure, myId, peer));
+            return "Transfer of " + in.name + " failed: " + failure;
+        }
+        in.received += data.length;
+        in.unacked += data.length;
+        in.lastChunk = System.nanoTime();
+        if (in.received == in.size) {
+            incoming.remove(in.key());
+            in.close();
+            double seconds = (System.nanoTime() - in.started) / 1e9;
+            return String.format(Locale.ROOT, "Received %s (%s) in %.1f s, %.1f MB/s: %s",
+                    in.name, format(in.size), seconds, in.size / 1e6 / Math.max(seconds, 1e-3), in.path);
+        }
+        // Re-grant in half-window steps, so the sender does not stall on every chunk
+        if (in.unacked >= WINDOW / 2) {
+            send(new Message("FILE_CREDIT", id + " " + in.unacked, myId, peer));
+            in.unacked = 0;
+        }
+        return null;
+    }
+
+    /** True while a file is being received; the main loop then calls expire() now and then. */
+    boolean receiving() {
+        for (Incoming in : incoming.values()) {
+            if (in.channel != null) return true;
+        }
+        return false;
+    }
+
+    /** Cancel incoming transfers that have had no chunk for STALL_SECONDS. Returns what to show, or null. */
+    String expire(String myId) {
+        long now = System.nanoTime();
+        StringBuilder shown = null;
+        for (Iterator<Incoming> it = incoming.values().iterator(); it.hasNext(); ) {
+            Incoming in = it.next();
+            if (in.channel == null || now - in.lastChunk < STALL_NANOS) continue;
+            it.remove();
+            in.discard();
+            send(new Message("FILE_CANCEL", in.id + " stalled", myId, in.peer));
+            String line = "Transfer of " + in.name + " stopped: nothing from " + in.peer + " for " + STALL_SECONDS + " s";
+            shown = shown == null ? new StringBuilder(line) : shown.append('\n').append(line);
+        }
+        return shown == null ? null : shown.toString();
+    }
+
+    /** The connection is gone: drop every transfer (the peer is told by its own FILE_CANCEL or timeout). */
+    String abortAll() {
+        int n = incoming.size() + outgoing.size();
+        for (Incoming in : incoming.values()) in.discard();
+        incoming.clear();
+        for (Outgoing o : outgoing.values()) o.cancel();
+        outgoing.clear();
+        return n == 0 ? null : n + " file transfer(s) cancelled: connection lost";
+    }
+
+    /** Oldest offer from peer not yet accepted. */
+    private Incoming pending(String peer) {
+        for (Incoming in : incoming.values()) {
+            if (in.peer.equals(peer) && in.channel == null) return in;
+        }
+        return null;
+    }
+
+    /** Send from the main loop; a failure closes the connection, which is reported there. */
+    private void send(Message msg) {
+        try {
+            sender.send(msg);
+        } catch (IOException ignored) {
+            // the listener sees the socket close and the main loop reconnects
+        }
+    }
+
+    /** The offered name reduced to a plain file name, numbered if one already exists. */
+    private static Path unique(Path dir, String offered) {
+        String name = offered.replaceAll("[^A-Za-z0-9._ -]", "_").replaceFirst("^[. ]+", "");
+        if (name.isEmpty()) name = "file";
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        Path p = dir.resolve(name);
+        for (int i = 1; Files.exists(p); i++) p = dir.resolve(base + "-" + i + ext);
+        return p;
+    }
+
+    static String format(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format(Locale.ROOT, "%.1f KB", bytes / 1024.0);
+        return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    private static final class Incoming {
+        final String peer;
+        final String id;
+        final long size;
+        final String name;
+        Path path;
+        FileChannel channel;  // null until accepted
+        long received;
+        long unacked;         // bytes written since credit was last granted
+        long started;
+        long lastChunk;
+
+        Incoming(String peer, String id, long size, String name) {
+            if (size < 0) throw new NumberFormatException("negative size");
+            this.peer = peer;
+            this.id = id;
+            this.size = size;
+            this.name = name;
+        }
+
+        String key() {
+            return peer + " " + id;
+        }
+
+        void close() {
+            if (channel == null) return;
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+
+        /** Close and delete the partial file. */
+        void discard() {
+            close();
+            if (path == null) return;
+            try { Files.deleteIfExists(path); } catch (IOException ignored) {}
+        }
+    }
+
+    /** An offered file; once accepted, its own thread sends it as credit allows. */
+    private final class Outgoing implements Runnable {
+        final String id;
+        final Path path;
+        final long size;
+        final String name;
+        final String from;
+        final String peer;
+        boolean started;            // main loop only
+        private long credit;        // guarded by this
+        private boolean cancelled;  // guarded by this
+
+        Outgoing(String id, Path path, long size, String from, String peer) {
+            this.id = id;
+            this.path = path;
+            this.size = size;
+            this.name = path.getFileName().toString();
+            this.from = from;
+            this.peer = peer;
+        }
+
+        synchronized void grant(long bytes) {
+            credit += bytes;
+            notifyAll();
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+
+        /** Wait for credit for len bytes and take it. False if cancelled. */
+        private synchronized boolean take(int len) throws InterruptedException, IOException {
+            long deadline = System.nanoTime() + STALL_NANOS;
+            while (credit < len && !cancelled) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) throw new IOException("no credit from " + peer + " for " + STALL_SECONDS + " s");
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            credit -= len;
+            return !cancelled;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                // Full chunks reuse one buffer: send encodes it into the frame before returning
+                byte[] full = new byte[CHUNK_SIZE];
+                long offset = 0;
+                do {
+                    int len = (int) Math.min(CHUNK_SIZE, size - offset);
+                    if (!take(len)) return;
+                    byte[] data = len == CHUNK_SIZE ? full : new byte[len];
+                    ByteBuffer buf = ByteBuffer.wrap(data);
+                    while (buf.hasRemaining()) {
+                        if (ch.read(buf, offset + buf.position()) < 0) throw new EOFException("file shrank");
+                    }
+                    sender.send(new Message("FILE_CHUNK", id + " " + offset, from, peer, data));
+                    offset += len;
+                } while (offset < size);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                notices.accept(String.format(Locale.ROOT, "Sent %s (%s) in %.1f s", name, format(size), seconds));
+            } catch (IOException e) {
+                if (isCancelled()) return;
+                notices.accept("Sending " + name + " failed: " + e.getMessage());
+                try {
+                    sender.send(new Message("FILE_CANCEL", id + " sender failed", from, peer));
+                } catch (IOException ignored) {
+                    // connection gone too
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                outgoing.remove(id, this);
+            }
+        }
+
+        private synchronized boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Liveness of client connections (--heartbeat, --idle-timeout): PING idle
+ * clients, and close connections that have sent nothing for the timeout,
+ * which is how a dead or half-open peer is noticed before TCP gives up.
+ *
+ * All connections share one timing wheel with a slot per one-second tick,
+ * advanced by a single task on the server timer; there is no timer or read
+ * timeout per connection. Readers only stamp the current tick into their
+ * Entry on each frame, which is a write at most once per tick. A connection
+ * sits in the slot of its next check; when the slot comes up it is pinged,
+ * reaped, or filed again for lastRead + ping interval, so a client that
+ * keeps talking is visited once per interval and never pinged.
+ *
+ * The wheel itself is only touched by the timer thread: new entries arrive
+ * through a queue, and closed ones are dropped when their slot comes up.
+ */
+final class Heartbeats {
+    private static final long TICK_MS = 1000;
+
+    private static int pingTicks;      // 0: never ping
+    private static int timeoutTicks;   // 0: never reap
+    private static ArrayList<Entry>[] wheel; // timer thread only
+    private static volatile int now;   // ticks since start; what readers stamp
+    private static volatile boolean started;
+    private static final ConcurrentLinkedQueue<Entry> added = new ConcurrentLinkedQueue<>();
+    private static byte[] ping;
+
+    /** One connection's liveness, held by the connection. */
+    static final class Entry {
+        private final Connection conn;
+        private final Runnable reap;
+        private volatile int lastRead = now;
+        private volatile boolean closed;
+
+        private Entry(Connection conn, Runnable reap) {
+            this.conn = conn;
+            this.reap = reap;
+        }
+
+        /** Called by the reader for every frame received. */
+        void touch() {
+            int t = now;
+            if (lastRead != t) lastRead = t;
+        }
+
+        /** Called when the connection closes, for any reason. */
+        void untrack() {
+            closed = true;
+        }
+    }
+
+    private Heartbeats() {}
+
+    /**
+     * Start checking connections tracked from now on. Either interval may be
+     * 0 to turn that part off; with both 0 nothing is scheduled.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static void start(int pingSeconds, int timeoutSeconds, ScheduledExecutorService timer) {
+        if (pingSeconds <= 0 && timeoutSeconds <= 0) return;
+        pingTicks = Math.max(0, pingSeconds);
+        timeoutTicks = Math.max(0, timeoutSeconds);
+        wheel = new ArrayList[Math.max(pingTicks, timeoutTicks) + 1];
+        for (int i = 0; i < wheel.length; i++) wheel[i] = new ArrayList<>();
+        ping = MessageCodec.encode(new Message("PING", null, "Server", null));
+        started = true;
+        timer.scheduleAtFixedRate(Heartbeats::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Track a new connection. reap closes it; it may be run on the timer
+     * thread, so it must only start the close (the reader cleans up).
+     */
+    static Entry track(Connection conn, Runnable reap) {
+        Entry e = new Entry(conn, reap);
+        if (started) added.add(e);
+        return e;
+    }
+
+    private static void tick() {
+        int t = now + 1;
+        now = t;
+        for (Entry e; (e = added.poll()) != null; ) file(e, t, pingTicks > 0 ? pingTicks : timeoutTicks);
+
+        // Checked entries are filed into other slots, never this one
+        ArrayList<Entry> due = wheel[t % wheel.length];
+        for (Entry e : due) {
+            if (!e.closed) check(e, t);
+        }
+        due.clear();
+    }
+
+    private static void check(Entry e, int t) {
+        int idle = t - e.lastRead;
+        if (timeoutTicks > 0 && idle >= timeoutTicks) {
+            e.closed = true;
+            Metrics.increment(Metrics.idleDisconnects);
+            Log.warn("Disconnecting " + e.conn.getClientId() + ": nothing received for " + idle + "s");
+            e.reap.run();
+            return;
+        }
+        int next = timeoutTicks > 0 ? timeoutTicks - idle : Integer.MAX_VALUE;
+        if (pingTicks > 0) {
+            if (idle < pingTicks) {
+                next = Math.min(next, pingTicks - idle);
+            } else if (Server.isRegistered(e.conn)) {
+                // Not before the handshake: the client is still waiting for its welcome.
+                // Never wait on the shared timer; a PING lost to a full queue is covered by the timeout.
+                e.conn.sendFrame(ping, false);
+                next = Math.min(next, pingTicks);
+            }
+        }
+        file(e, t, next == Integer.MAX_VALUE ? pingTicks : next);
+    }
+
+    private static void file(Entry e, int t, int delay) {
+        delay = Math.max(1, Math.min(delay, wheel.length - 1));
+        wheel[(t + delay) % wheel.length].add(e);
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear latency histogram in the style of HdrHistogram:
+ * 32 linear sub-buckets per power of two, i.e. about 3% relative error,
+ * over 0 ns to ~18 minutes. Recording is one array increment and never
+ * allocates, so it is safe on the message hot path.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(long nanos) {
+        counts.incrementAndGet(index(Math.max(0, Math.min(nanos, MAX_VALUE))));
+    }
+
+    long count() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += counts.get(i);
+        return n;
+    }
+
+    /** Value at quantile q (0..1), as the lower bound of its bucket. 0 when empty. */
+    long percentile(double q) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return valueAt(i);
+        }
+        return valueAt(BUCKETS - 1);
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+    }
+
+    private static int index(long v) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(v) - SUB_BITS);
+        return shift * SUB + (int) (v >>> shift);
+    }
+
+    private static long valueAt(int index) {
+        if (index < 2 * SUB) return index;
+        int shift = index / SUB - 1;
+        return (long) (index - shift * SUB) << shift;
+    }
+}
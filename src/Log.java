@@ -0,0 +1,167 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous server log. Handler threads publish lines into a bounded
+ * lock-free ring buffer and return immediately; one daemon thread formats
+ * and writes them to System.out in batches. When the ring is full new
+ * lines are dropped (and counted) rather than stalling the caller.
+ *
+ * Callers on hot paths should check enabled()/sampled() before building a
+ * string, so a disabled or unsampled line costs no allocation.
+ */
+final class Log {
+    enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int CAPACITY = 8192; // power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    // Vyukov-style bounded MPSC ring: sequences[i] says whether slot i is
+    // free for position p (== p) or holds position p (== p + 1)
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final String[] lines = new String[CAPACITY];
+    private static final Level[] levels = new Level[CAPACITY];
+    private static final long[] times = new long[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head; // written by the writer thread only
+
+    private static final LongAdder dropped = new LongAdder();
+    private static final AtomicLong sampleCounter = new AtomicLong();
+
+    private static volatile Level threshold = Level.INFO;
+    private static volatile int sampleEvery = 1;
+    private static volatile boolean writerSleeping;
+    private static final Thread writer;
+    private static final List<Thread> flushAfter = new CopyOnWriteArrayList<>();
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) sequences.set(i, i);
+        writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flushAtExit, "log-flush"));
+    }
+
+    private Log() {}
+
+    static void setLevel(Level level) { threshold = level; }
+
+    /** Keep one in every n per-message lines (1 keeps all, 0 keeps none). */
+    static void setSampleEvery(int n) { sampleEvery = Math.max(0, n); }
+
+    static boolean enabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    /** True for the lines that per-message logging should keep at this level. */
+    static boolean sampled(Level level) {
+        if (!enabled(level)) return false;
+        int n = sampleEvery;
+        if (n <= 1) return n == 1;
+        return sampleCounter.getAndIncrement() % n == 0;
+    }
+
+    static void debug(String line) { log(Level.DEBUG, line); }
+    static void info(String line)  { log(Level.INFO, line); }
+    static void warn(String line)  { log(Level.WARN, line); }
+    static void error(String line) { log(Level.ERROR, line); }
+
+    static void log(Level level, String line) {
+        if (!enabled(level)) return;
+        long pos = tail.get();
+        while (true) {
+            int slot = (int) (pos & MASK);
+            long diff = sequences.get(slot) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    lines[slot] = line;
+                    levels[slot] = level;
+                    times[slot] = System.currentTimeMillis();
+                    sequences.set(slot, pos + 1); // publish
+                    if (writerSleeping) LockSupport.unpark(writer);
+                    return;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                dropped.increment(); // ring full
+                return;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /** Block until everything published so far has been written (bounded wait). */
+    static void flush() {
+        long target = tail.get();
+        long deadline = System.nanoTime() + 2_000_000_000L;
+        LockSupport.unpark(writer);
+        while (head < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    /**
+     * Make the flush at exit wait for hook, another shutdown hook that logs
+     * (shutdown hooks run concurrently, in no particular order).
+     */
+    static void flushAfter(Thread hook) {
+        flushAfter.add(hook);
+    }
+
+    private static void flushAtExit() {
+        for (Thread hook : flushAfter) {
+            try {
+                hook.join();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        flush();
+    }
+
+    private static void writeLoop() {
+        StringBuilder batch = new StringBuilder(16 * 1024);
+        long reportedDrops = 0;
+        while (true) {
+            int n = 0;
+            while (n < 1024) {
+                int slot = (int) (head & MASK);
+                if (sequences.get(slot) != head + 1) break;
+                batch.append(TIME.format(Instant.ofEpochMilli(times[slot])))
+                        .append(' ').append(levels[slot]).append(' ')
+                        .append(lines[slot]).append('\n');
+                lines[slot] = null;
+                sequences.set(slot, head + CAPACITY); // free for the next lap
+                head++;
+                n++;
+            }
+            long drops = dropped.sum();
+            if (drops != reportedDrops) {
+                batch.append("log ring full: dropped ").append(drops - reportedDrops).append(" lines\n");
+                reportedDrops = drops;
+            }
+            if (batch.length() > 0) {
+                System.out.print(batch);
+                System.out.flush();
+                batch.setLength(0);
+            }
+            if (n > 0) continue;
+
+            writerSleeping = true;
+            if (sequences.get((int) (head & MASK)) != head + 1) {
+                LockSupport.parkNanos(1_000_000_000L);
+            }
+            writerSleeping = false;
+        }
+    }
+}
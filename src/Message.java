@@ -1,15 +1,37 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Date;
 
 public class Message implements Serializable {
+    // Pinned to what the class computed to at the time, so --serialization=java peers from other builds still agree
+    private static final long serialVersionUID = 1849562240202004928L;
+
     // Types: "CHAT", "CONNECT_REQUEST", "CONNECT_ACCEPT", "CONNECT_DENY",
-    //        "SYSTEM", "SYSTEM_LIST", "SYSTEM_ERROR"
+    //        "SYSTEM", "SYSTEM_LIST", "SYSTEM_ERROR",
+    //        "ROOM_JOIN", "ROOM_LEAVE", "ROOM_CHAT" (room name in 'to' for ROOM_CHAT, in 'text' otherwise)
+    //        "PRESENCE" (server push to /subscribe'd clients: "+id name" / "-id name" per line)
+    //        "PING", "PONG" (heartbeats)
+    //        "FILE_OFFER", "FILE_ACCEPT", "FILE_CREDIT", "FILE_CHUNK", "FILE_CANCEL" (see FileTransfer)
     private String type;
     private String text;
-    private String from;   // clientId or "Server"
-    private String to;     // clientId or "Server"
+    private String from;   // clientId or "Server"; built on first use when decoded from a client number
+    private String to;     // clientId or "Server"; likewise
     private Date created;
 
+    /** Client number of an ID that is not "ClientN" (null, "Server", anything else). */
+    static final int NO_CLIENT = -1;
+    private static final int UNPARSED = -2;
+    private static final String CLIENT_PREFIX = "Client";
+
+    // What the server routes on: N for "ClientN", else NO_CLIENT
+    private transient int fromNumber = UNPARSED;
+    private transient int toNumber = UNPARSED;
+
+    // Binary payload of a FILE_CHUNK; only binary frames carry it (after the text)
+    private transient byte[] data;
+
     public Message(String type, String text, String from, String to) {
         this.type = type;
         this.text = text;
@@ -18,14 +40,94 @@ public class Message implements Serializable {
         this.created = new Date();
     }
 
+    // Used by MessageCodec to keep the sender's timestamp
+    Message(String type, String text, String from, String to, Date created) {
+        this.type = type;
+        this.text = text;
+        this.from = from;
+        this.to = to;
+        this.created = created;
+    }
+
+    // Used by MessageCodec for client IDs sent as numbers; the strings stay null until asked for
+    Message(String type, String text, String from, int fromNumber, String to, int toNumber, Date created) {
+        this(type, text, from, to, created);
+        this.fromNumber = fromNumber;
+        this.toNumber = toNumber;
+    }
+
+    /** A message with a binary payload; the array is kept, not copied. */
+    Message(String type, String text, String from, String to, byte[] data) {
+        this(type, text, from, to);
+        this.data = data;
+    }
+
     public String getType() { return type; }
     public String getText() { return text; }
-    public String getFrom() { return from; }
-    public String getTo() { return to; }
     public Date getCreated() { return created; }
 
+    /** Binary payload (FILE_CHUNK), or null. */
+    byte[] getData() { return data; }
+
+    void setData(byte[] data) { this.data = data; }
+
+    public String getFrom() {
+        if (from == null && fromNumber >= 0) from = clientId(fromNumber);
+        return from;
+    }
+
+    public String getTo() {
+        if (to == null && toNumber >= 0) to = clientId(toNumber);
+        return to;
+    }
+
+    /** Client number of 'from', or NO_CLIENT. */
+    int getFromNumber() {
+        if (fromNumber == UNPARSED) fromNumber = clientNumber(from);
+        return fromNumber;
+    }
+
+    /** Client number of 'to', or NO_CLIENT. */
+    int getToNumber() {
+        if (toNumber == UNPARSED) toNumber = clientNumber(to);
+        return toNumber;
+    }
+
+    /** Display form of a client number. */
+    static String clientId(int number) {
+        return CLIENT_PREFIX + number;
+    }
+
+    /** N for a canonical "ClientN" ID, else NO_CLIENT. Does not allocate. */
+    static int clientNumber(String id) {
+        if (id == null || !id.startsWith(CLIENT_PREFIX)) return NO_CLIENT;
+        int len = id.length();
+        int start = CLIENT_PREFIX.length();
+        if (len == start || len - start > 9) return NO_CLIENT;
+        if (id.charAt(start) == '0' && len > start + 1) return NO_CLIENT; // leading zero would not round-trip
+        int n = 0;
+        for (int i = start; i < len; i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') return NO_CLIENT;
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getFrom();
+        getTo();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        fromNumber = UNPARSED;
+        toNumber = UNPARSED;
+    }
+
     @Override
     public String toString() {
-        return "[" + type + "][" + created + "] " + from + " -> " + to + ": " + text;
+        return "[" + type + "][" + created + "] " + getFrom() + " -> " + getTo() + ": " + text;
     }
 }
@@ -0,0 +1,426 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Length-prefixed framing for Message. Every frame is
+ *
+ *   [int length][byte flags][payload]
+ *
+ * where length counts the flags byte and payload, so a reader can find
+ * message boundaries without decoding (needed by the non-blocking server,
+ * which receives bytes in arbitrary chunks).
+ *
+ * The default payload is a compact binary form:
+ *
+ *   [byte type][varint from][varint to][varlong created millis][varint text length + 1][UTF-8 text]
+ *
+ * Known types are one-byte codes, "ClientN" IDs are the number N, and the
+ * text is raw UTF-8 (length 0 means null). Any bytes after the text are the
+ * message's binary data (FILE_CHUNK). Frames with FLAG_JAVA carry a
+ * Java-serialized Message instead. Only a process in that mode
+ * (--serialization=java) decodes them, and then only a Message of Strings
+ * and a Date; everywhere else they are refused. Binary frames are always
+ * accepted. Messages with data are always sent binary, since the data is
+ * not part of the serialized form.
+ * FLAG_DEFLATE frames are undone by the connection's Compression before
+ * they get here.
+ */
+final class MessageCodec {
+    static final int HEADER_BYTES = 4;
+    static final int MAX_FRAME = 1 << 20;
+
+    static final int FLAG_JAVA = 1;
+    static final int FLAG_DEFLATE = 2;     // payload is deflated (see Compression)
+    static final int FLAG_DEFLATE_OK = 4;  // handshake: the sender takes FLAG_DEFLATE frames
+    static final int DICTIONARY_SHIFT = 3; // handshake, with FLAG_DEFLATE_OK: Compression.DICTIONARY_VERSION
+    static final int DICTIONARY_BITS = 3 << DICTIONARY_SHIFT;
+
+    // Wire codes are the index into this table; 0 means the type string follows
+    private static final String[] TYPES = {
+            null, "CHAT", "CONNECT_REQUEST", "CONNECT_ACCEPT", "CONNECT_DENY",
+            "SYSTEM", "SYSTEM_LIST", "SYSTEM_ERROR", "ROOM_JOIN", "ROOM_LEAVE", "ROOM_CHAT",
+            "PRESENCE", "PING", "PONG",
+            "FILE_OFFER", "FILE_ACCEPT", "FILE_CREDIT", "FILE_CHUNK", "FILE_CANCEL"
+    };
+
+    /**
+     * Separates the resume token from the rest of the handshake text: the
+     * welcome's greeting, and on reconnect the intro's username.
+     */
+    static final String RESUME_MARK = "\nresume ";
+
+    /** Code of the one type the server relays without decoding. */
+    static final int FILE_CHUNK = 17;
+
+    // ID encodings: 0 null, 1 "Server", 2 literal string, 3+n "Client"+n
+    private static final int ID_NULL = 0;
+    private static final int ID_SERVER = 1;
+    private static final int ID_LITERAL = 2;
+    private static final int ID_CLIENT_BASE = 3;
+
+    private static volatile boolean javaSerialization = false;
+
+    // All a serialized Message may contain; anything else is rejected before it is instantiated
+    private static final ObjectInputFilter JAVA_FILTER = ObjectInputFilter.Config.createFilter(
+            "Message;java.util.Date;java.lang.String;maxdepth=3;maxrefs=16;maxarray=0;maxbytes=" + MAX_FRAME + ";!*");
+
+    private MessageCodec() {}
+
+    /** Use Java serialization for frames this process sends, and accept it in frames received (compatibility mode). */
+    static void setJavaSerialization(boolean enabled) {
+        javaSerialization = enabled;
+    }
+
+    /** One-byte wire code for a message type, or 0 if it has none. */
+    static int typeCode(String type) {
+        if (type == null) return 0;
+        switch (type) {
+            case "CHAT": return 1;
+            case "CONNECT_REQUEST": return 2;
+            case "CONNECT_ACCEPT": return 3;
+            case "CONNECT_DENY": return 4;
+            case "SYSTEM": return 5;
+            case "SYSTEM_LIST": return 6;
+            case "SYSTEM_ERROR": return 7;
+            case "ROOM_JOIN": return 8;
+            case "ROOM_LEAVE": return 9;
+            case "ROOM_CHAT": return 10;
+            case "PRESENCE": return 11;
+            case "PING": return 12;
+            case "PONG": return 13;
+            case "FILE_OFFER": return 14;
+            case "FILE_ACCEPT": return 15;
+            case "FILE_CREDIT": return 16;
+            case "FILE_CHUNK": return FILE_CHUNK;
+            case "FILE_CANCEL": return 18;
+            default: return 0;
+        }
+    }
+
+    /** Number of distinct type codes, including 0 for "other". */
+    static int typeCount() {
+        return TYPES.length;
+    }
+
+    /** Name for a type code; "OTHER" for 0 (types sent as literal strings). */
+    static String typeName(int code) {
+        return code > 0 && code < TYPES.length ? TYPES[code] : "OTHER";
+    }
+
+    /** Type code of an encoded frame without decoding it; 0 if not a binary frame. */
+    static int frameTypeCode(byte[] frame) {
+        return bodyTypeCode(frame, HEADER_BYTES, frame.length - HEADER_BYTES);
+    }
+
+    /** Type code of a frame body (flags + payload) without decoding it; 0 if not binary. */
+    static int bodyTypeCode(byte[] buf, int off, int len) {
+        if (len < 2 || (buf[off] & (FLAG_JAVA | FLAG_DEFLATE)) != 0) return 0;
+        int code = buf[off + 1] & 0xFF;
+        return code < TYPES.length ? code : 0;
+    }
+
+    /**
+     * Client number of a binary frame's sender, or Message.NO_CLIENT, read
+     * from the header only. With frameTo, lets the server route a frame
+     * without decoding its text or data.
+     */
+    static int frameFrom(byte[] frame) throws IOException {
+        return peekId(frame, false);
+    }
+
+    /** Like frameFrom, but also for a Java frame, which it decodes to find out. */
+    static int frameSender(byte[] frame) throws IOException {
+        if (frame.length > HEADER_BYTES && (frame[HEADER_BYTES] & FLAG_JAVA) != 0) {
+            return decodeFrame(frame).getFromNumber();
+        }
+        return frameFrom(frame);
+    }
+
+    /** Client number of a binary frame's recipient, or Message.NO_CLIENT. */
+    static int frameTo(byte[] frame) throws IOException {
+        return peekId(frame, true);
+    }
+
+    private static int peekId(byte[] frame, boolean to) throws IOException {
+        if (frame.length <= HEADER_BYTES || (frame[HEADER_BYTES] & (FLAG_JAVA | FLAG_DEFLATE)) != 0) {
+            return Message.NO_CLIENT;
+        }
+        Reader r = new Reader(frame, HEADER_BYTES + 1, frame.length);
+        try {
+            if (r.get() == 0) r.skipString();
+            long id = r.getVarlong();
+            if (to) {
+                if (id == ID_LITERAL) r.skipString();
+                id = r.getVarlong();
+            }
+            return id == ID_LITERAL ? Message.clientNumber(r.getString()) : idNumber(id, null);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated frame", e);
+        }
+    }
+
+    /**
+     * Encode a message into a complete frame (length prefix included). A
+     * frame is immutable once built, so a message for many recipients is
+     * encoded once and the same array queued to each.
+     */
+    static byte[] encode(Message msg) {
+        return javaSerialization && msg.getData() == null ? encodeJava(msg) : encodeBinary(msg);
+    }
+
+    static byte[] encodeBinary(Message msg) {
+        int typeCode = typeCode(msg.getType());
+        byte[] type = typeCode == 0 ? utf8(msg.getType()) : null;
+        // Client IDs go out as their numbers, so decoded messages never build the strings
+        int from = msg.getFromNumber();
+        String fromId = from < 0 ? msg.getFrom() : null;
+        byte[] fromText = utf8(fromId);
+        int to = msg.getToNumber();
+        String toId = to < 0 ? msg.getTo() : null;
+        byte[] toText = utf8(toId);
+        byte[] text = utf8(msg.getText());
+        long created = msg.getCreated() == null ? 0 : msg.getCreated().getTime();
+        byte[] data = msg.getData();
+
+        int size = 1 + 1
+                + (typeCode == 0 ? stringSize(type) : 0)
+                + idSize(fromId, from, fromText)
+                + idSize(toId, to, toText)
+                + varlongSize(created)
+                + stringSize(text)
+                + (data == null ? 0 : data.length);
+        Writer w = new Writer(HEADER_BYTES + size);
+        w.putInt(size);
+        w.put(0);
+        w.put(typeCode);
+        if (typeCode == 0) w.putString(type);
+        w.putId(fromId, from, fromText);
+        w.putId(toId, to, toText);
+        w.putVarlong(created);
+        w.putString(text);
+        if (data != null) System.arraycopy(data, 0, w.buf, w.pos, data.length);
+        return w.buf;
+    }
+
+    static byte[] encodeJava(Message msg) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            bytes.write(new byte[HEADER_BYTES]); // length placeholder
+            bytes.write(FLAG_JAVA);
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(msg);
+            }
+            byte[] frame = bytes.toByteArray();
+            writeLength(frame, frame.length - HEADER_BYTES);
+            return frame;
+        } catch (IOException e) {
+            // ByteArrayOutputStream never throws; only a non-serializable field could get here
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Decode a frame body (flags + payload, without the length prefix). */
+    static Message decode(byte[] buf, int off, int len) throws IOException {
+        if (len < 1) throw new IOException("Empty frame");
+        if ((buf[off] & FLAG_DEFLATE) != 0) throw new IOException("Compressed frame without negotiated compression");
+        if ((buf[off] & FLAG_JAVA) != 0) {
+            if (!javaSerialization) throw new IOException("Java-serialized frame refused (--serialization=binary)");
+            return decodeJava(buf, off + 1, len - 1);
+        }
+        Reader r = new Reader(buf, off + 1, off + len);
+        try {
+            int code = r.get();
+            String type = code == 0 ? r.getString() : type(code);
+            long from = r.getVarlong();
+            String fromText = from == ID_LITERAL ? r.getString() : null;
+            long to = r.getVarlong();
+            String toText = to == ID_LITERAL ? r.getString() : null;
+            long created = r.getVarlong();
+            String text = r.getString();
+            Message msg = new Message(type, text, idText(from, fromText), idNumber(from, fromText),
+                    idText(to, toText), idNumber(to, toText), new Date(created));
+            if (r.pos < r.end) msg.setData(Arrays.copyOfRange(buf, r.pos, r.end));
+            return msg;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated frame", e);
+        }
+    }
+
+    private static Message decodeJava(byte[] buf, int off, int len) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(buf, off, len))) {
+            ois.setObjectInputFilter(JAVA_FILTER);
+            return (Message) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Bad frame: " + e.getMessage(), e);
+        }
+    }
+
+    /** Validates a length prefix read off the wire. */
+    static int checkLength(int len) throws IOException {
+        if (len < 0 || len > MAX_FRAME) {
+            throw new IOException("Bad frame length: " + len);
+        }
+        return len;
+    }
+
+    static void write(OutputStream out, Message msg) throws IOException {
+        out.write(encode(msg));
+    }
+
+    /** Decode a complete frame (length prefix included). */
+    static Message decodeFrame(byte[] frame) throws IOException {
+        return decode(frame, HEADER_BYTES, frame.length - HEADER_BYTES);
+    }
+
+    /** Blocking read of one frame. Throws EOFException when the peer closes. */
+    static Message read(DataInputStream in) throws IOException {
+        return decodeFrame(readFrame(in));
+    }
+
+    /** Blocking read of one complete frame, length prefix included, so it can be relayed as is. */
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        int len = checkLength(in.readInt());
+        byte[] frame = new byte[HEADER_BYTES + len];
+        writeLength(frame, len);
+        in.readFully(frame, HEADER_BYTES, len);
+        return frame;
+    }
+
+    private static String type(int code) throws IOException {
+        if (code >= TYPES.length) throw new IOException("Unknown type code: " + code);
+        return TYPES[code];
+    }
+
+    /** String form of a decoded ID; null for client numbers, which Message builds on demand. */
+    private static String idText(long code, String literal) {
+        if (code == ID_SERVER) return "Server";
+        return code == ID_LITERAL ? literal : null;
+    }
+
+    private static int idNumber(long code, String literal) throws IOException {
+        if (code < ID_CLIENT_BASE) return code == ID_LITERAL ? Message.clientNumber(literal) : Message.NO_CLIENT;
+        if (code - ID_CLIENT_BASE > Integer.MAX_VALUE) throw new IOException("Bad client number: " + code);
+        return (int) (code - ID_CLIENT_BASE);
+    }
+
+    private static int idSize(String id, int number, byte[] literal) {
+        if (number >= 0) return varlongSize(ID_CLIENT_BASE + (long) number);
+        if (id == null || "Server".equals(id)) return 1;
+        return 1 + stringSize(literal);
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int stringSize(byte[] s) {
+        return s == null ? 1 : varlongSize(s.length + 1L) + s.length;
+    }
+
+    private static int varlongSize(long v) {
+        int n = 1;
+        while ((v >>>= 7) != 0) n++;
+        return n;
+    }
+
+    static void writeLength(byte[] frame, int len) {
+        frame[0] = (byte) (len >>> 24);
+        frame[1] = (byte) (len >>> 16);
+        frame[2] = (byte) (len >>> 8);
+        frame[3] = (byte) len;
+    }
+
+    private static final class Writer {
+        final byte[] buf;
+        int pos;
+
+        Writer(int size) {
+            buf = new byte[size];
+        }
+
+        void put(int b) {
+            buf[pos++] = (byte) b;
+        }
+
+        void putInt(int v) {
+            writeLength(buf, v);
+            pos += 4;
+        }
+
+        void putVarlong(long v) {
+            while ((v & ~0x7FL) != 0) {
+                put((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            put((int) v);
+        }
+
+        void putString(byte[] s) {
+            if (s == null) {
+                put(0);
+                return;
+            }
+            putVarlong(s.length + 1L);
+            System.arraycopy(s, 0, buf, pos, s.length);
+            pos += s.length;
+        }
+
+        void putId(String id, int number, byte[] literal) {
+            if (number >= 0) {
+                putVarlong(ID_CLIENT_BASE + (long) number);
+            } else if (id == null) {
+                put(ID_NULL);
+            } else if ("Server".equals(id)) {
+                put(ID_SERVER);
+            } else {
+                put(ID_LITERAL);
+                putString(literal);
+            }
+        }
+    }
+
+    private static final class Reader {
+        final byte[] buf;
+        final int end;
+        int pos;
+
+        Reader(byte[] buf, int pos, int end) {
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        int get() {
+            if (pos >= end) throw new ArrayIndexOutOfBoundsException(pos);
+            return buf[pos++] & 0xFF;
+        }
+
+        long getVarlong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = get();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        String getString() throws IOException {
+            long n = getVarlong();
+            if (n == 0) return null;
+            int len = (int) (n - 1);
+            if (len < 0 || len > end - pos) throw new IOException("Bad string length: " + len);
+            String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        void skipString() throws IOException {
+            long n = getVarlong();
+            if (n > end - pos + 1L) throw new IOException("Bad string length: " + (n - 1));
+            if (n > 0) pos += (int) (n - 1);
+        }
+    }
+}
@@ -0,0 +1,378 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only store for messages whose recipient is offline, kept in
+ * fixed-size memory-mapped segment files so an append is a memcpy into the
+ * page cache (no write syscall, no fsync on the caller's thread; a
+ * background task forces dirty pages once a second).
+ *
+ * Segment layout: 16-byte header [int magic][int version][long createdMillis],
+ * then records
+ *
+ *   [int length][byte state][long seq][long appendedMillis][short userLen][user UTF-8][frame]
+ *
+ * where length covers everything after itself and 0 marks the end of data,
+ * and seq is a store-wide sequence that keeps per-user order across
+ * compaction and restarts.
+ * Delivery flips the state byte in place, so segments are never rewritten;
+ * an in-memory index maps each username to the addresses of its pending
+ * records and is rebuilt by scanning segments on startup.
+ *
+ * A record expires once it is older than the retention period, counted
+ * from its appendedMillis, which compaction carries over; expired records
+ * are never delivered. Maintenance (every 30 s): closed segments with no
+ * live pending records are deleted (a segment whose newest record has
+ * expired holds none), and closed segments that are mostly delivered are
+ * compacted by copying the live pending records to the head. The head is
+ * rolled once it is a quarter of the retention period old, so a quiet
+ * server's head does not outlive the period waiting to fill up.
+ */
+final class MessageStore implements Closeable {
+    private static final int MAGIC = 0x43485431; // "CHT1"
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER = 16;
+    private static final int RECORD_FIXED = 4 + 1 + 8 + 8 + 2;
+    private static final int SEQ = 5, APPENDED = 13, USER_LEN = 21; // field offsets in a record
+    private static final byte PENDING = 0;
+    private static final byte DELIVERED = 1;
+    private static final double COMPACT_BELOW = 0.25; // pending/total ratio
+    private static final String SEGMENT_NAME = "\\d{1,18}\\.log";
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long retentionMillis;
+
+    // All state below is guarded by lock; appends are short (a memcpy)
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Map<String, ArrayDeque<Long>> index = new HashMap<>(); // username -> addresses
+    private Segment head;
+    private long nextSeq = 1;
+
+    private static final class Segment {
+        final long id;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buf;
+        final long createdMillis;
+        int writePos = SEGMENT_HEADER;
+        int total;
+        int pending;
+        long newestMillis = Long.MIN_VALUE; // latest appendedMillis written
+
+        Segment(long id, Path path, FileChannel channel, MappedByteBuffer buf, long createdMillis) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.buf = buf;
+            this.createdMillis = createdMillis;
+        }
+    }
+
+    MessageStore(Path dir, int segmentBytes, long retentionMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retentionMillis = retentionMillis;
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                if (!name.matches(SEGMENT_NAME)) {
+                    Log.warn("Message store: ignoring unrecognized file " + p);
+                    continue;
+                }
+                long id = Long.parseLong(name.substring(0, name.length() - 4));
+                Segment s = open(id, p, false);
+                if (s != null) segments.put(id, s);
+            }
+        }
+        for (Segment s : segments.values()) recover(s);
+        for (ArrayDeque<Long> addresses : index.values()) {
+            Long[] sorted = addresses.toArray(new Long[0]);
+            Arrays.sort(sorted, Comparator.comparingLong(this::seqAt));
+            addresses.clear();
+            addresses.addAll(Arrays.asList(sorted));
+        }
+        head = segments.isEmpty() ? roll() : segments.lastEntry().getValue();
+    }
+
+    /** Persist a frame for an offline user. Returns false if it cannot be stored. */
+    boolean append(String username, byte[] frame) {
+        byte[] user = username.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_FIXED - 4 + user.length + frame.length;
+        if (user.length > Short.MAX_VALUE || SEGMENT_HEADER + 4 + length + 4 > segmentBytes) return false;
+        lock.lock();
+        try {
+            // The head's own size: one reopened from before a --store-segment change may differ
+            if (head.writePos + 4 + length + 4 > head.buf.capacity()) head = roll();
+            long address = write(head, user, frame, nextSeq++, System.currentTimeMillis());
+            index.computeIfAbsent(username, u -> new ArrayDeque<>()).add(address);
+            return true;
+        } catch (IOException e) {
+            Log.error("Message store append failed: " + e.getMessage());
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove and return up to max pending frames for a user, oldest first,
+     * marking them delivered. Expired records are marked and skipped.
+     */
+    List<byte[]> take(String username, int max) {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            ArrayDeque<Long> addresses = index.get(username);
+            if (addresses == null) return List.of();
+            List<byte[]> frames = new ArrayList<>(Math.min(max, addresses.size()));
+            while (frames.size() < max && !addresses.isEmpty()) {
+                long address = addresses.poll();
+                Segment s = segments.get(address >>> 32);
+                if (s == null) continue; // expired with its segment
+                int pos = (int) address;
+                if (expired(s, pos, now)) {
+                    s.buf.put(pos + 4, DELIVERED);
+                    s.pending--;
+                    continue;
+                }
+                int length = s.buf.getInt(pos);
+                int userLen = s.buf.getShort(pos + USER_LEN);
+                int frameLen = length - (RECORD_FIXED - 4) - userLen;
+                byte[] frame = new byte[frameLen];
+                s.buf.get(pos + RECORD_FIXED + userLen, frame);
+                s.buf.put(pos + 4, DELIVERED);
+                s.pending--;
+                frames.add(frame);
+            }
+            if (addresses.isEmpty()) index.remove(username);
+            return frames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Pending records for a user that have not expired. */
+    int pendingFor(String username) {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            ArrayDeque<Long> addresses = index.get(username);
+            if (addresses == null) return 0;
+            int live = 0;
+            for (long a : addresses) {
+                Segment s = segments.get(a >>> 32);
+                if (s != null && !expired(s, (int) a, now)) live++;
+            }
+            return live;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Flush dirty pages to disk. */
+    void force() {
+        List<Segment> snapshot;
+        lock.lock();
+        try {
+            snapshot = new ArrayList<>(segments.values());
+        } finally {
+            lock.unlock();
+        }
+        for (Segment s : snapshot) {
+            try {
+                s.buf.force();
+            } catch (RuntimeException ignored) {
+                // segment deleted concurrently
+            }
+        }
+    }
+
+    /** Apply retention and compaction; see class comment. */
+    void maintain() {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            if (head.total > 0 && now - head.createdMillis > retentionMillis / 4) head = roll();
+            for (Segment s : new ArrayList<>(segments.values())) {
+                if (s == head) continue;
+                if (s.pending == 0 || now - s.newestMillis > retentionMillis) {
+                    if (s.pending > 0) {
+                        Log.info("Message store: expiring " + s.pending + " undelivered messages in segment " + s.id);
+                        dropFromIndex(s.id);
+                    }
+                    delete(s);
+                } else if (s.pending < s.total * COMPACT_BELOW) {
+                    compact(s, now);
+                }
+            }
+        } catch (IOException e) {
+            Log.error("Message store maintenance failed: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        force();
+        lock.lock();
+        try {
+            for (Segment s : segments.values()) {
+                try { s.channel.close(); } catch (IOException ignored) {}
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ---------------- internals (lock held) ----------------
+
+    private Segment roll() throws IOException {
+        long id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        Segment s = open(id, dir.resolve(String.format("%012d.log", id)), true);
+        segments.put(id, s);
+        return s;
+    }
+
+    private Segment open(long id, Path path, boolean create) throws IOException {
+        FileChannel ch = create
+                ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int size = create ? segmentBytes : (int) ch.size();
+        MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (create) {
+            long now = System.currentTimeMillis();
+            buf.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, now);
+            return new Segment(id, path, ch, buf, now);
+        }
+        if (size < SEGMENT_HEADER || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            Log.warn("Message store: ignoring unrecognized file " + path);
+            ch.close();
+            return null;
+        }
+        return new Segment(id, path, ch, buf, buf.getLong(8));
+    }
+
+    /** Rebuild write position, counters and index entries from a segment on disk. */
+    private void recover(Segment s) {
+        int pos = SEGMENT_HEADER;
+        int limit = s.buf.capacity();
+        while (pos + 4 <= limit) {
+            int length = s.buf.getInt(pos);
+            if (length <= 0 || pos + 4 + length > limit) break;
+            s.total++;
+            nextSeq = Math.max(nextSeq, s.buf.getLong(pos + SEQ) + 1);
+            s.newestMillis = Math.max(s.newestMillis, s.buf.getLong(pos + APPENDED));
+            if (s.buf.get(pos + 4) == PENDING) {
+                int userLen = s.buf.getShort(pos + USER_LEN);
+                byte[] user = new byte[userLen];
+                s.buf.get(pos + RECORD_FIXED, user);
+                index.computeIfAbsent(new String(user, StandardCharsets.UTF_8), u -> new ArrayDeque<>())
+                        .add(s.id << 32 | pos);
+                s.pending++;
+            }
+            pos += 4 + length;
+        }
+        s.writePos = pos;
+    }
+
+    private boolean expired(Segment s, int pos, long now) {
+        return now - s.buf.getLong(pos + APPENDED) > retentionMillis;
+    }
+
+    private long seqAt(long address) {
+        return segments.get(address >>> 32).buf.getLong((int) address + SEQ);
+    }
+
+    private long write(Segment s, byte[] user, byte[] frame, long seq, long appendedMillis) {
+        int pos = s.writePos;
+        MappedByteBuffer b = s.buf;
+        b.put(pos + 4, PENDING);
+        b.putLong(pos + SEQ, seq);
+        b.putLong(pos + APPENDED, appendedMillis);
+        b.putShort(pos + USER_LEN, (short) user.length);
+        b.put(pos + RECORD_FIXED, user);
+        b.put(pos + RECORD_FIXED + user.length, frame);
+        // length last: a torn append reads as end-of-data on recovery
+        b.putInt(pos, RECORD_FIXED - 4 + user.length + frame.length);
+        s.writePos = pos + RECORD_FIXED + user.length + frame.length;
+        s.total++;
+        s.pending++;
+        s.newestMillis = Math.max(s.newestMillis, appendedMillis);
+        return s.id << 32 | pos;
+    }
+
+    /** Copy a segment's live pending records to the head, then delete it; expired ones go with it. */
+    private void compact(Segment s, long now) throws IOException {
+        Map<Long, Long> moved = new HashMap<>();
+        int pos = SEGMENT_HEADER;
+        while (pos < s.writePos) {
+            int length = s.buf.getInt(pos);
+            if (s.buf.get(pos + 4) == PENDING && !expired(s, pos, now)) {
+                long seq = s.buf.getLong(pos + SEQ);
+                long appended = s.buf.getLong(pos + APPENDED);
+                int userLen = s.buf.getShort(pos + USER_LEN);
+                byte[] user = new byte[userLen];
+                s.buf.get(pos + RECORD_FIXED, user);
+                byte[] frame = new byte[length - (RECORD_FIXED - 4) - userLen];
+                s.buf.get(pos + RECORD_FIXED + userLen, frame);
+                int record = RECORD_FIXED + userLen + frame.length + 4;
+                if (head.writePos + record > head.buf.capacity()) head = roll();
+                if (head.writePos + record <= head.buf.capacity()) {
+                    moved.put(s.id << 32 | pos, write(head, user, frame, seq, appended));
+                } else {
+                    Log.warn("Message store: dropping a message for " + new String(user, StandardCharsets.UTF_8)
+                            + " larger than --store-segment");
+                }
+            }
+            pos += 4 + length;
+        }
+        Iterator<ArrayDeque<Long>> it = index.values().iterator();
+        while (it.hasNext()) {
+            ArrayDeque<Long> addresses = it.next();
+            if (addresses.stream().noneMatch(a -> a >>> 32 == s.id)) continue;
+            ArrayDeque<Long> remapped = new ArrayDeque<>(addresses.size());
+            for (long a : addresses) {
+                if (a >>> 32 != s.id) remapped.add(a);
+                else if (moved.containsKey(a)) remapped.add(moved.get(a));
+            }
+            addresses.clear();
+            addresses.addAll(remapped);
+            if (addresses.isEmpty()) it.remove();
+        }
+        Log.info("Message store: compacted segment " + s.id + " (" + moved.size() + " pending of " + s.total + ")");
+        delete(s);
+    }
+
+    private void dropFromIndex(long segmentId) {
+        Iterator<ArrayDeque<Long>> it = index.values().iterator();
+        while (it.hasNext()) {
+            ArrayDeque<Long> addresses = it.next();
+            addresses.removeIf(a -> a >>> 32 == segmentId);
+            if (addresses.isEmpty()) it.remove();
+        }
+    }
+
+    private void delete(Segment s) throws IOException {
+        segments.remove(s.id);
+        s.channel.close();
+        Files.deleteIfExists(s.path);
+    }
+
+    /** Schedule force() every second and maintain() every 30 seconds. */
+    void scheduleOn(ScheduledExecutorService timer) {
+        timer.scheduleWithFixedDelay(this::force, 1, 1, TimeUnit.SECONDS);
+        timer.scheduleWithFixedDelay(this::maintain, 30, 30, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,153 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server instrumentation: striped counters and latency histograms keyed by
+ * message type code (see MessageCodec.typeCode), exposed in Prometheus text
+ * format on a local HTTP endpoint (--metrics-port).
+ *
+ * Stages timed per message type:
+ *   route  - from a decoded message entering Server.onMessage until routing returns
+ *   queue  - from a frame entering a client's OutboundQueue until its writer takes it
+ *
+ * Recording is LongAdder increments and histogram bucket increments only;
+ * nothing on the hot path allocates.
+ */
+final class Metrics {
+    private static final int TYPES = MessageCodec.typeCount();
+
+    private static volatile boolean enabled = true;
+
+    static final LongAdder[] received = adders(TYPES);
+    static final LongAdder[] sent = adders(TYPES);
+    static final LongAdder[] rateLimited = adders(TYPES);
+    private static final LatencyHistogram[] route = histograms(TYPES);
+    private static final LatencyHistogram[] queue = histograms(TYPES);
+
+    static final LongAdder connectionsOpened = new LongAdder();
+    static final LongAdder connectionsClosed = new LongAdder();
+    static final LongAdder sendFailures = new LongAdder();
+    static final LongAdder spoofRejections = new LongAdder();
+    static final LongAdder queueDrops = new LongAdder();
+    static final LongAdder slowConsumerDisconnects = new LongAdder();
+    static final LongAdder storedMessages = new LongAdder();
+    static final LongAdder storedDelivered = new LongAdder();
+    static final LongAdder clusterFramesSent = new LongAdder();
+    static final LongAdder clusterFramesReceived = new LongAdder();
+    static final LongAdder rateLimitDisconnects = new LongAdder();
+    static final LongAdder idleDisconnects = new LongAdder();
+
+    private Metrics() {}
+
+    static void setEnabled(boolean on) { enabled = on; }
+    static boolean enabled() { return enabled; }
+
+    /** A message of this type finished routing; start is System.nanoTime() when it entered. */
+    static void routed(int typeCode, long startNanos) {
+        if (!enabled) return;
+        received[typeCode].increment();
+        route[typeCode].record(System.nanoTime() - startNanos);
+    }
+
+    /** A writer took a frame off an outbound queue after waiting this long. */
+    static void dequeued(byte[] frame, long waitNanos) {
+        if (!enabled) return;
+        int type = MessageCodec.frameTypeCode(frame);
+        sent[type].increment();
+        queue[type].record(waitNanos);
+    }
+
+    static void increment(LongAdder counter) {
+        if (enabled) counter.increment();
+    }
+
+    /** Prometheus text exposition of everything above plus live gauges. */
+    static String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        gauge(sb, "chat_connected_clients", Server.clientCount());
+        gauge(sb, "chat_queued_frames", Server.queuedFrames());
+        counter(sb, "chat_connections_opened_total", connectionsOpened.sum());
+        counter(sb, "chat_connections_closed_total", connectionsClosed.sum());
+        counter(sb, "chat_send_failures_total", sendFailures.sum());
+        counter(sb, "chat_spoof_rejections_total", spoofRejections.sum());
+        counter(sb, "chat_queue_drops_total", queueDrops.sum());
+        counter(sb, "chat_slow_consumer_disconnects_total", slowConsumerDisconnects.sum());
+        counter(sb, "chat_stored_messages_total", storedMessages.sum());
+        counter(sb, "chat_stored_delivered_total", storedDelivered.sum());
+        counter(sb, "chat_cluster_frames_sent_total", clusterFramesSent.sum());
+        counter(sb, "chat_cluster_frames_received_total", clusterFramesReceived.sum());
+        counter(sb, "chat_rate_limit_disconnects_total", rateLimitDisconnects.sum());
+        counter(sb, "chat_idle_disconnects_total", idleDisconnects.sum());
+
+        sb.append("# TYPE chat_messages_received_total counter\n");
+        for (int t = 0; t < TYPES; t++) typed(sb, "chat_messages_received_total", t, received[t].sum());
+        sb.append("# TYPE chat_messages_sent_total counter\n");
+        for (int t = 0; t < TYPES; t++) typed(sb, "chat_messages_sent_total", t, sent[t].sum());
+        sb.append("# TYPE chat_rate_limited_total counter\n");
+        for (int t = 0; t < TYPES; t++) typed(sb, "chat_rate_limited_total", t, rateLimited[t].sum());
+        summary(sb, "chat_route_latency_seconds", route);
+        summary(sb, "chat_queue_latency_seconds", queue);
+        return sb.toString();
+    }
+
+    /** Serve render() at http://127.0.0.1:port/metrics on a single daemon thread. */
+    static HttpServer startHttp(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.setExecutor(null); // dispatcher thread handles requests
+        http.start();
+        return http;
+    }
+
+    private static void gauge(StringBuilder sb, String name, long value) {
+        sb.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, long value) {
+        sb.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void typed(StringBuilder sb, String name, int type, long value) {
+        sb.append(name).append("{type=\"").append(MessageCodec.typeName(type)).append("\"} ").append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, LatencyHistogram[] byType) {
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        for (int t = 0; t < TYPES; t++) {
+            LatencyHistogram h = byType[t];
+            long count = h.count();
+            if (count == 0) continue;
+            String type = MessageCodec.typeName(t);
+            for (double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+                sb.append(name).append("{type=\"").append(type).append("\",quantile=\"").append(q).append("\"} ")
+                        .append(h.percentile(q) / 1e9).append('\n');
+            }
+            sb.append(name).append("_count{type=\"").append(type).append("\"} ").append(count).append('\n');
+        }
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+        for (int i = 0; i < n; i++) a[i] = new LongAdder();
+        return a;
+    }
+
+    private static LatencyHistogram[] histograms(int n) {
+        LatencyHistogram[] h = new LatencyHistogram[n];
+        for (int i = 0; i < n; i++) h[i] = new LatencyHistogram();
+        return h;
+    }
+}
@@ -0,0 +1,471 @@
+import javax.net.ssl.SSLContext;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking server mode. One acceptor thread hands new channels to a
+ * fixed pool of selector loops (round robin). Each connection is owned by
+ * exactly one loop, so its read state needs no locking; other threads only
+ * hand it outbound frames through a concurrent queue.
+ *
+ * An idle connection costs a channel, a selection key and a NioConnection
+ * object: no thread, and no read buffer unless a frame arrived in pieces.
+ *
+ * With a TLS context each connection also gets a Tls.Engine; records are
+ * unwrapped into the same shared read buffer and frames are wrapped on
+ * their way out, so the framing and routing code is unchanged.
+ */
+final class NioServer implements Closeable {
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final Thread acceptor;
+    private final SSLContext tls; // null: plaintext
+    private volatile boolean running = true;
+
+    NioServer(int port, int loopCount) throws IOException {
+        this(port, loopCount, null);
+    }
+
+    NioServer(int port, int loopCount, SSLContext tls) throws IOException {
+        this.tls = tls;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i);
+        }
+        acceptor = new Thread(this::acceptLoop, "nio-acceptor");
+    }
+
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    void start() {
+        for (EventLoop loop : loops) loop.start();
+        acceptor.start();
+    }
+
+    void awaitTermination() throws InterruptedException {
+        acceptor.join();
+        for (EventLoop loop : loops) loop.join();
+    }
+
+    /** Close the listening socket; connections already accepted keep being served. */
+    void stopAccepting() throws IOException {
+        serverChannel.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (EventLoop loop : loops) loop.selector.wakeup();
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException closed) {
+                return;
+            } catch (IOException e) {
+                if (running) Log.warn("Accept failed: " + e.getMessage());
+                continue;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                NioConnection conn = new NioConnection(channel, loop, Server.nextClientNumber());
+                loop.execute(conn::register);
+            } catch (IOException | RuntimeException e) {
+                Log.warn("Accept failed: " + e.getMessage());
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    final class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Shared by every connection on this loop; only partial frames are copied out
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        // Scratch space for gathering writes
+        private final byte[][] drained = new byte[64][];
+        private final ByteBuffer[] gather = new ByteBuffer[64];
+        // Ciphertext scratch for TLS connections on this loop
+        private final ByteBuffer tlsIn, tlsOut;
+
+        EventLoop(String name) throws IOException {
+            super(name);
+            selector = Selector.open();
+            tlsIn = tls == null ? null : ByteBuffer.allocate(Tls.Engine.scratchSize(tls));
+            tlsOut = tls == null ? null : ByteBuffer.allocate(Tls.Engine.scratchSize(tls));
+        }
+
+        /** Run a task on this loop. Safe to call from any thread. */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != this) selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    runTasks();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection conn = (NioConnection) key.attachment();
+                        if (!key.isValid()) continue;
+                        if (key.isReadable()) conn.onReadable(readBuffer);
+                        if (key.isValid() && key.isWritable()) conn.flushOutbound();
+                    }
+                    runTasks();
+                }
+            } catch (IOException e) {
+                Log.error(getName() + " stopped: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((NioConnection) key.attachment()).close();
+                }
+                try { selector.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    final class NioConnection implements Connection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private int clientNumber;     // changes only before registration (a reclaimed ID)
+        private String clientId;
+        private final Tls.Engine tlsEngine; // null: plaintext
+        private volatile String username = "(unknown)";
+        private SelectionKey key;
+
+        // ---- read side (loop thread only) ----
+        private boolean registered;   // handshake done
+        private ByteBuffer pending;   // unconsumed bytes of a partial frame, in write mode
+        private final RateLimiter.Bucket limiter = Server.newRateBucket(); // null: unlimited
+        private boolean paused;       // over the rate limit: OP_READ is off until resume()
+        private Compression compression; // null: not negotiated (set by the intro frame)
+        private byte[] held;          // inflated frame held back by the rate limit; inflate only once
+        private final Heartbeats.Entry liveness;
+
+        // ---- write side ----
+        private final OutboundQueue outbound = Server.newOutboundQueue();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private ArrayDeque<ByteBuffer> backlog; // taken from outbound but not fully written (loop thread only)
+        private boolean closeWhenFlushed;
+        private volatile boolean closed;
+
+        NioConnection(SocketChannel channel, EventLoop loop, int clientNumber) {
+            this.channel = channel;
+            this.loop = loop;
+            this.clientNumber = clientNumber;
+            this.clientId = Message.clientId(clientNumber);
+            this.tlsEngine = tls == null ? null : new Tls.Engine(Tls.serverEngine(tls));
+            this.liveness = Heartbeats.track(this, () -> loop.execute(this::close));
+        }
+
+        @Override
+        public int getClientNumber() { return clientNumber; }
+        @Override
+        public String getClientId() { return clientId; }
+        @Override
+        public String getUsername() { return username; }
+        @Override
+        public void setUsername(String username) { this.username = username; }
+        @Override
+        public OutboundQueue getOutbound() { return outbound; }
+
+        @Override
+        public void setClientNumber(int number) {
+            clientNumber = number;
+            clientId = Message.clientId(number);
+        }
+
+        @Override
+        public void drainAndClose() {
+            loop.execute(() -> {
+                closeWhenFlushed = true;
+                flushOutbound();
+            });
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (IOException | RuntimeException e) { // closes the channel too
+                close();
+            }
+        }
+
+        @Override
+        public void sendFrame(byte[] frame, boolean mayBlock) {
+            OutboundQueue.Offer result = outbound.offer(frame, mayBlock);
+            if (result == OutboundQueue.Offer.DISCONNECT) {
+                Metrics.increment(Metrics.slowConsumerDisconnects);
+                Log.warn("Disconnecting slow consumer " + clientId
+                        + " (" + outbound.depth() + " messages queued)");
+                loop.execute(this::close);
+            } else if (result == OutboundQueue.Offer.QUEUED && flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flushOutbound);
+            }
+        }
+
+        @Override
+        public void sendBulkFrame(byte[] frame) {
+            if (outbound.offerBulk(frame) == OutboundQueue.Offer.QUEUED && flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flushOutbound);
+            }
+        }
+
+        void onReadable(ByteBuffer buf) {
+            buf.clear();
+            int n;
+            try {
+                n = tlsEngine == null ? channel.read(buf) : tlsEngine.read(channel, buf, loop.tlsIn, loop.tlsOut);
+            } catch (IOException e) {
+                Log.warn("Client error (" + clientId + "): " + e.getMessage());
+                close();
+                return;
+            }
+            if (n < 0) {
+                close();
+                return;
+            }
+            buf.flip();
+
+            ByteBuffer src = buf;
+            if (pending != null) {
+                if (pending.remaining() < buf.remaining()) {
+                    pending = grow(pending, buf.remaining());
+                }
+                pending.put(buf).flip();
+                src = pending;
+            }
+
+            if (!processFrames(src)) return;
+            keepRemainder(src);
+
+            if (tlsEngine != null && !closed) {
+                // Handshake output the socket did not take, or frames held back by a handshake
+                if (!tlsEngine.flushed() || backlog != null) flushOutbound();
+                if (!closed && !paused && tlsEngine.hasMoreInput()) onReadable(buf);
+            }
+        }
+
+        /** Handle the complete frames at the front of src. False if the connection was closed. */
+        private boolean processFrames(ByteBuffer src) {
+            try {
+                while (!closed && !closeWhenFlushed && !paused && src.remaining() >= MessageCodec.HEADER_BYTES) {
+                    int len = MessageCodec.checkLength(src.getInt(src.position()));
+                    if (src.remaining() < MessageCodec.HEADER_BYTES + len) break;
+                    int start = src.position() + MessageCodec.HEADER_BYTES;
+                    byte[] body = src.array();
+                    int off = src.arrayOffset() + start;
+                    int bodyLen = len;
+                    if (!registered && compression == null && len > 0) {
+                        compression = Server.acceptCompression(body[off]);
+                    } else if (compression != null && Compression.isCompressed(body, off, len)) {
+                        if (held == null) held = compression.inflate(body, off, len);
+                        body = held;
+                        off = MessageCodec.HEADER_BYTES;
+                        bodyLen = held.length - MessageCodec.HEADER_BYTES;
+                    }
+                    boolean chunk = registered && MessageCodec.bodyTypeCode(body, off, bodyLen) == MessageCodec.FILE_CHUNK;
+                    Message msg = chunk ? null : MessageCodec.decode(body, off, bodyLen);
+                    liveness.touch();
+                    // A frame over the limit stays in pending until it is due
+                    if (registered && limiter != null
+                            && !admit(chunk ? MessageCodec.FILE_CHUNK : MessageCodec.typeCode(msg.getType()))) break;
+                    byte[] inflated = held;
+                    held = null;
+                    if (chunk) {
+                        // Relayed as is: copied out of the read buffer once, never decoded
+                        byte[] frame = inflated != null ? inflated : Arrays.copyOfRange(src.array(),
+                                src.arrayOffset() + src.position(), src.arrayOffset() + start + len);
+                        src.position(start + len);
+                        Server.relayChunk(this, frame);
+                    } else {
+                        src.position(start + len);
+                        onFrame(msg);
+                    }
+                }
+            } catch (IOException e) {
+                Log.warn("Client error (" + clientId + "): " + e.getMessage());
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        private void keepRemainder(ByteBuffer src) {
+            if (!src.hasRemaining()) {
+                pending = null;
+            } else if (src == pending) {
+                pending.compact();
+            } else {
+                pending = ByteBuffer.allocate(Math.max(src.remaining(), 256));
+                pending.put(src);
+            }
+        }
+
+        /**
+         * Rate-limit a message of this type. False if it has to wait, with
+         * reading paused until it is due, or if the client is being
+         * disconnected for it.
+         */
+        private boolean admit(int type) {
+            long wait = limiter.acquire(type, System.nanoTime());
+            if (wait == 0) return true;
+            if (Server.rateLimited(this, limiter, type)) {
+                closeWhenFlushed = true;
+                flushOutbound();
+                return false;
+            }
+            // Not reading lets the client's sends back up in TCP, as in blocking mode
+            paused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            Server.schedule(() -> loop.execute(this::resume), wait);
+            return false;
+        }
+
+        private void resume() {
+            if (closed) return;
+            paused = false;
+            if (pending != null) {
+                pending.flip();
+                if (!processFrames(pending)) return;
+                keepRemainder(pending);
+            }
+            if (closed || closeWhenFlushed || paused) return;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            // Plaintext the engine already holds would otherwise wait for the next packet
+            if (tlsEngine != null && tlsEngine.hasMoreInput()) onReadable(loop.readBuffer);
+        }
+
+        private void onFrame(Message msg) {
+            if (registered) {
+                Server.onMessage(this, msg);
+            } else if (Server.handshake(this, msg)) {
+                registered = true;
+            } else {
+                closeWhenFlushed = true;
+                flushOutbound();
+            }
+        }
+
+        /**
+         * Write queued frames until the socket would block, gathering up to
+         * 64 frames per write call. Loop thread only.
+         */
+        void flushOutbound() {
+            flushScheduled.set(false);
+            if (closed) return;
+            ByteBuffer[] gather = loop.gather;
+            try {
+                if (tlsEngine != null && !tlsEngine.flush(channel)) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                while (true) {
+                    int n = 0;
+                    if (backlog != null) {
+                        ByteBuffer b;
+                        while (n < gather.length && (b = backlog.poll()) != null) gather[n++] = b;
+                    }
+                    int m = outbound.drainTo(loop.drained, gather.length - n);
+                    for (int i = 0; i < m; i++) {
+                        byte[] frame = loop.drained[i];
+                        gather[n++] = ByteBuffer.wrap(compression == null ? frame : compression.compress(frame));
+                        loop.drained[i] = null;
+                    }
+                    if (n == 0) break;
+
+                    // With TLS, "written" means wrapped; wrote is false if ciphertext is left over
+                    boolean wrote = true;
+                    if (tlsEngine == null) {
+                        channel.write(gather, 0, n);
+                    } else {
+                        wrote = tlsEngine.write(channel, gather, 0, n, loop.tlsOut);
+                    }
+                    int first = 0;
+                    while (first < n && !gather[first].hasRemaining()) first++;
+                    if (first < n || !wrote) {
+                        if (first < n && backlog == null) backlog = new ArrayDeque<>();
+                        for (int i = n - 1; i >= first; i--) backlog.addFirst(gather[i]);
+                        Arrays.fill(gather, 0, n, null);
+                        // A TLS engine holding frames until the peer's handshake message needs no
+                        // OP_WRITE; onReadable flushes again after unwrapping it
+                        if (!wrote || tlsEngine == null) {
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        }
+                        return;
+                    }
+                    Arrays.fill(gather, 0, n, null);
+                }
+                backlog = null;
+                if (key != null && key.isValid()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+                if (closeWhenFlushed) close();
+            } catch (IOException e) {
+                Metrics.increment(Metrics.sendFailures);
+                Log.warn("Send failed to " + clientId + ": " + e.getMessage());
+                close();
+            }
+        }
+
+        /** Loop thread only. */
+        void close() {
+            if (closed) return;
+            closed = true;
+            liveness.untrack();
+            outbound.close();
+            if (compression != null) {
+                compression.endWriter();
+                compression.endReader();
+            }
+            if (tlsEngine != null) tlsEngine.close(channel, loop.tlsOut);
+            if (key != null) key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+            Server.removeClient(this);
+        }
+
+        private ByteBuffer grow(ByteBuffer buf, int extra) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + extra));
+            buf.flip();
+            bigger.put(buf);
+            return bigger;
+        }
+    }
+}
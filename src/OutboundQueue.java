@@ -0,0 +1,247 @@
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded per-client queue of encoded frames. Any thread may offer; one
+ * writer drains it in batches so several pending messages go out with a
+ * single flush, and a slow receiver only backs up its own queue instead of
+ * blocking the senders routing to it.
+ *
+ * File chunks go in a separate bulk lane, drained after the regular frames
+ * and only a few per batch, so a chat line queued behind a transfer waits
+ * for at most a few chunks rather than the whole window in flight.
+ *
+ * Locking uses ReentrantLock rather than synchronized so virtual-thread
+ * writers waiting here unmount from their carrier.
+ */
+final class OutboundQueue {
+    enum Overflow { DROP_OLDEST, DISCONNECT, BLOCK }
+
+    /** Result of offer(). */
+    enum Offer { QUEUED, DROPPED, DISCONNECT }
+
+    /** Bulk frames a client may have queued; 1 MB of 16 KB chunks. */
+    static final int BULK_CAPACITY = 64;
+    private static final int BULK_PER_BATCH = 4;
+
+    private byte[][] ring;   // grows on demand up to capacity, so idle clients stay small
+    private long[] stamps;   // System.nanoTime() at enqueue, parallel to ring
+    private final int capacity;
+    private final Overflow policy;
+    private final long blockNanos;
+    private final boolean clientFrames; // false for cluster links: frames are not chat messages
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int head;
+    private int size;
+    private byte[][] bulk;        // allocated on first use; fixed at BULK_CAPACITY
+    private long[] bulkStamps;
+    private int bulkHead;
+    private int bulkSize;
+    private boolean closed;
+
+    private volatile int depth;
+    private volatile long drops;
+
+    OutboundQueue(int capacity, Overflow policy, long blockMillis) {
+        this(capacity, policy, blockMillis, true);
+    }
+
+    OutboundQueue(int capacity, Overflow policy, long blockMillis, boolean clientFrames) {
+        this.clientFrames = clientFrames;
+        this.capacity = Math.max(1, capacity);
+        this.ring = new byte[Math.min(this.capacity, 8)][];
+        this.stamps = new long[ring.length];
+        this.policy = policy;
+        this.blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis);
+    }
+
+    /**
+     * Queue a frame. When full, the overflow policy decides: DROP_OLDEST
+     * evicts the head, DISCONNECT asks the caller to drop the client, BLOCK
+     * waits up to the configured timeout and then drops the new frame.
+     * Callers that must not block (event loop threads) pass mayBlock=false.
+     */
+    Offer offer(byte[] frame, boolean mayBlock) {
+        lock.lock();
+        try {
+            if (closed) return Offer.DROPPED;
+            if (size == ring.length && ring.length < capacity) grow();
+            if (size == ring.length) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        ring[head] = null;
+                        head = (head + 1) % ring.length;
+                        size--;
+                        countDrop();
+                        break;
+                    case DISCONNECT:
+                        countDrop();
+                        return Offer.DISCONNECT;
+                    case BLOCK:
+                        if (!mayBlock || !awaitSpace()) {
+                            countDrop();
+                            return Offer.DROPPED;
+                        }
+                        break;
+                }
+            }
+            int tail = (head + size) % ring.length;
+            ring[tail] = frame;
+            stamps[tail] = System.nanoTime();
+            depth = ++size + bulkSize;
+            notEmpty.signal();
+            return Offer.QUEUED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue a frame in the bulk lane. Transfers are flow-controlled end to
+     * end, so a full lane means the sender ignored its credit: the new frame
+     * is dropped (the receiver sees the gap and cancels) and the overflow
+     * policy, which is about chat traffic, does not apply.
+     */
+    Offer offerBulk(byte[] frame) {
+        lock.lock();
+        try {
+            if (closed) return Offer.DROPPED;
+            if (bulk == null) {
+                bulk = new byte[BULK_CAPACITY][];
+                bulkStamps = new long[BULK_CAPACITY];
+            }
+            if (bulkSize == BULK_CAPACITY) {
+                countDrop();
+                return Offer.DROPPED;
+            }
+            int tail = (bulkHead + bulkSize) % BULK_CAPACITY;
+            bulk[tail] = frame;
+            bulkStamps[tail] = System.nanoTime();
+            depth = size + ++bulkSize;
+            notEmpty.signal();
+            return Offer.QUEUED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void grow() {
+        int newLength = Math.min(capacity, ring.length * 2);
+        byte[][] bigger = new byte[newLength][];
+        long[] biggerStamps = new long[newLength];
+        for (int i = 0; i < size; i++) {
+            int from = (head + i) % ring.length;
+            bigger[i] = ring[from];
+            biggerStamps[i] = stamps[from];
+        }
+        ring = bigger;
+        stamps = biggerStamps;
+        head = 0;
+    }
+
+    private void countDrop() {
+        drops++;
+        Metrics.increment(Metrics.queueDrops);
+    }
+
+    private boolean awaitSpace() {
+        long nanos = blockNanos;
+        try {
+            while (size == ring.length && !closed) {
+                if (nanos <= 0) return false;
+                nanos = notFull.awaitNanos(nanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !closed;
+    }
+
+    /** Move up to max frames into batch without waiting. Returns the count. */
+    int drainTo(byte[][] batch, int max) {
+        lock.lock();
+        try {
+            return drainLocked(batch, max);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until at least one frame is queued, then drain up to batch.length.
+     * Returns 0 once the queue is closed and empty.
+     */
+    int awaitBatch(byte[][] batch) throws InterruptedException {
+        lock.lock();
+        try {
+            while (size + bulkSize == 0) {
+                if (closed) return 0;
+                notEmpty.await();
+            }
+            return drainLocked(batch, batch.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int drainLocked(byte[][] batch, int max) {
+        int n = Math.min(size, max);
+        long now = n > 0 ? System.nanoTime() : 0;
+        for (int i = 0; i < n; i++) {
+            batch[i] = ring[head];
+            if (clientFrames) Metrics.dequeued(ring[head], now - stamps[head]);
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+        }
+        size -= n;
+        if (n > 0) notFull.signalAll();
+        int b = Math.min(bulkSize, Math.min(max - n, BULK_PER_BATCH));
+        if (b > 0 && n == 0) now = System.nanoTime();
+        for (int i = 0; i < b; i++) {
+            batch[n + i] = bulk[bulkHead];
+            if (clientFrames) Metrics.dequeued(bulk[bulkHead], now - bulkStamps[bulkHead]);
+            bulk[bulkHead] = null;
+            bulkHead = (bulkHead + 1) % BULK_CAPACITY;
+        }
+        bulkSize -= b;
+        depth = size + bulkSize;
+        return n + b;
+    }
+
+    /** Discard every queued frame. Returns how many there were. */
+    int clear() {
+        lock.lock();
+        try {
+            int n = size + bulkSize;
+            Arrays.fill(ring, null);
+            if (bulk != null) Arrays.fill(bulk, null);
+            head = size = bulkHead = bulkSize = 0;
+            depth = 0;
+            notFull.signalAll();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stop accepting frames. Already queued frames can still be drained. */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int depth() { return depth; }
+    long drops() { return drops; }
+    int capacity() { return capacity; }
+}
@@ -0,0 +1,102 @@
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Per-client message rate limits (--rate-limit), checked on the read path
+ * before a message is routed. Limits are token buckets per message type,
+ * plus one over all types, e.g.
+ *
+ *   --rate-limit=all:200/400,chat:50/100,connect_request:2/5,system:5/10
+ *
+ * is 200 messages/s with bursts of 400 in total, and within that 50 CHAT/s
+ * (bursts of 100), and so on; "other" covers types without a wire code.
+ *
+ * Buckets are kept as GCRA theoretical arrival times: one long per limited
+ * type, no refill task and no lock. Each connection's Bucket is only touched
+ * by the thread reading that connection (its handler thread or event loop),
+ * so it needs no atomics either. When a message is over the limit the
+ * reader either stops reading until it is due, which backs the client up
+ * through TCP, or the client is disconnected (--rate-limit-action).
+ */
+final class RateLimiter {
+    enum Action { DELAY, DISCONNECT }
+
+    /** Bucket slot for the limit across all types; slots below it are type codes. */
+    static final int ALL = MessageCodec.typeCount();
+
+    private final long[] interval = new long[ALL + 1];  // nanoseconds per message; 0 = unlimited
+    private final long[] tolerance = new long[ALL + 1]; // (burst - 1) * interval
+    final Action action;
+
+    private RateLimiter(Action action) {
+        this.action = action;
+    }
+
+    /** Parses "name:rate[/burst],..."; name is "all", "other" or a message type (any case). */
+    static RateLimiter parse(String spec, Action action) {
+        RateLimiter limits = new RateLimiter(action);
+        for (String part : spec.split(",")) {
+            int colon = part.indexOf(':');
+            if (colon < 0) throw new IllegalArgumentException("--rate-limit expects name:rate[/burst], got " + part);
+            String name = part.substring(0, colon).trim().toUpperCase(Locale.ROOT);
+            int slot = name.equals("ALL") ? ALL : MessageCodec.typeCode(name);
+            if (slot == 0 && !name.equals("OTHER")) {
+                throw new IllegalArgumentException("--rate-limit: unknown message type " + name);
+            }
+            String[] rate = part.substring(colon + 1).split("/");
+            double perSecond;
+            int burst;
+            try {
+                perSecond = Double.parseDouble(rate[0]);
+                burst = rate.length > 1 ? Integer.parseInt(rate[1]) : (int) Math.max(1, perSecond);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("--rate-limit: bad rate in " + part);
+            }
+            if (perSecond <= 0 || burst < 1) throw new IllegalArgumentException("--rate-limit: bad rate in " + part);
+            limits.interval[slot] = Math.max(1, (long) (1e9 / perSecond));
+            limits.tolerance[slot] = (burst - 1) * limits.interval[slot];
+        }
+        return limits;
+    }
+
+    Bucket newBucket() {
+        return new Bucket(this);
+    }
+
+    /** One connection's buckets. Not thread-safe: owned by the connection's reader. */
+    static final class Bucket {
+        private final RateLimiter limits;
+        private final long[] tat; // theoretical arrival time per slot
+
+        private Bucket(RateLimiter limits) {
+            this.limits = limits;
+            this.tat = new long[ALL + 1];
+            Arrays.fill(tat, System.nanoTime()); // start with full buckets
+        }
+
+        Action action() {
+            return limits.action;
+        }
+
+        /**
+         * Take a token for a message of this type code. Returns 0 if it may be
+         * routed now, else the nanoseconds until it may (nothing is taken).
+         */
+        long acquire(int type, long now) {
+            long wait = Math.max(wait(type, now), wait(ALL, now));
+            if (wait > 0) return wait;
+            take(type, now);
+            take(ALL, now);
+            return 0;
+        }
+
+        private long wait(int slot, long now) {
+            return limits.interval[slot] == 0 ? 0 : tat[slot] - limits.tolerance[slot] - now;
+        }
+
+        private void take(int slot, long now) {
+            long interval = limits.interval[slot];
+            if (interval != 0) tat[slot] = Math.max(tat[slot], now) + interval;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Directory entry for a client connected to another node. Frames sent to
+ * it are forwarded over the cluster link to that node.
+ */
+final class RemoteConnection implements Connection {
+    private static final OutboundQueue UNLINKED = new OutboundQueue(1, OutboundQueue.Overflow.DROP_OLDEST, 0, false);
+
+    private int clientNumber;
+    private String clientId;
+    private volatile String username;
+    final int node;
+
+    RemoteConnection(int clientNumber, String username, int node) {
+        this.clientNumber = clientNumber;
+        this.clientId = Message.clientId(clientNumber);
+        this.username = username;
+        this.node = node;
+    }
+
+    @Override
+    public int getClientNumber() { return clientNumber; }
+    @Override
+    public String getClientId() { return clientId; }
+    @Override
+    public String getUsername() { return username; }
+    @Override
+    public void setUsername(String username) { this.username = username; }
+
+    @Override
+    public void setClientNumber(int number) {
+        clientNumber = number;
+        clientId = Message.clientId(number);
+    }
+
+    /** The link queue to the owning node (shared by all its clients). */
+    @Override
+    public OutboundQueue getOutbound() {
+        OutboundQueue q = Cluster.queueTo(node);
+        return q == null ? UNLINKED : q;
+    }
+
+    @Override
+    public void sendFrame(byte[] frame, boolean mayBlock) {
+        if (!Cluster.route(node, clientNumber, frame, mayBlock)) {
+            Log.warn("Dropped frame for " + clientId + ": link to node " + node + " is down or full");
+            Server.routeDropped(frame, clientId);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Multi-member chat rooms. A room message is encoded once and the same
+ * frame is queued for every member, so cost per recipient is one queue
+ * offer. Large rooms are split into slices that run in parallel on a
+ * shared fan-out pool instead of one thread walking every member.
+ */
+final class Rooms {
+    /** Members per fan-out task; rooms at or below this size are sent inline. */
+    static final int FANOUT_SLICE = 256;
+
+    private static final ForkJoinPool fanout = new ForkJoinPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()),
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+
+    private static final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    // clientId -> rooms joined, so a disconnect can leave them all
+    private static final ConcurrentHashMap<String, Set<String>> joined = new ConcurrentHashMap<>();
+
+    private Rooms() {}
+
+    static final class Room {
+        final String name;
+        private final Set<Connection> members = ConcurrentHashMap.newKeySet();
+        // Array copy of members for broadcasts; rebuilt lazily after a change
+        private volatile Connection[] snapshot = new Connection[0];
+        private volatile boolean dirty;
+
+        Room(String name) {
+            this.name = name;
+        }
+
+        int size() {
+            return members.size();
+        }
+
+        boolean contains(Connection c) {
+            return members.contains(c);
+        }
+
+        Connection[] members() {
+            if (dirty) {
+                dirty = false;
+                snapshot = members.toArray(new Connection[0]);
+            }
+            return snapshot;
+        }
+
+        private boolean add(Connection c) {
+            boolean added = members.add(c);
+            if (added) dirty = true;
+            return added;
+        }
+
+        private boolean remove(Connection c) {
+            boolean removed = members.remove(c);
+            if (removed) dirty = true;
+            return removed;
+        }
+    }
+
+    static Room get(String name) {
+        return rooms.get(name);
+    }
+
+    /** Returns false if the client was already a member. */
+    static boolean join(String name, Connection conn) {
+        while (true) {
+            Room room = rooms.computeIfAbsent(name, Room::new);
+            boolean added = room.add(conn);
+            if (rooms.get(name) == room) {
+                if (!added) return false;
+                break;
+            }
+            // Raced with the last member leaving and the room being dropped; retry
+            if (added) room.remove(conn);
+        }
+        joined.computeIfAbsent(conn.getClientId(), id -> ConcurrentHashMap.newKeySet()).add(name);
+        return true;
+    }
+
+    /** Returns false if the client was not a member. */
+    static boolean leave(String name, Connection conn) {
+        Room room = rooms.get(name);
+        if (room == null || !room.remove(conn)) return false;
+        Set<String> mine = joined.get(conn.getClientId());
+        if (mine != null) mine.remove(name);
+        if (room.size() == 0) rooms.remove(name, room);
+        return true;
+    }
+
+    /** Leave every room; called when a client disconnects. Returns the rooms left. */
+    static Set<String> leaveAll(Connection conn) {
+        Set<String> mine = joined.remove(conn.getClientId());
+        if (mine == null) return Set.of();
+        for (String name : mine) {
+            Room room = rooms.get(name);
+            if (room != null && room.remove(conn) && room.size() == 0) {
+                rooms.remove(name, room);
+            }
+        }
+        return mine;
+    }
+
+    /**
+     * Queue one encoded message for every member except 'skip' (may be null).
+     * Returns once every member's queue has been offered the frame. Fan-out
+     * tasks offer the way the caller would: an event loop waiting here must
+     * not end up waiting on a member's full queue through them.
+     */
+    static void broadcast(Room room, Message msg, Connection skip) {
+        byte[] frame = MessageCodec.encode(msg);
+        Connection[] members = room.members();
+        boolean mayBlock = Connection.mayBlock();
+        if (members.length <= FANOUT_SLICE) {
+            sendSlice(members, 0, members.length, frame, skip, mayBlock);
+            return;
+        }
+
+        int slices = (members.length + FANOUT_SLICE - 1) / FANOUT_SLICE;
+        CountDownLatch done = new CountDownLatch(slices - 1);
+        for (int s = 1; s < slices; s++) {
+            int from = s * FANOUT_SLICE;
+            int to = Math.min(members.length, from + FANOUT_SLICE);
+            fanout.execute(() -> {
+                try {
+                    sendSlice(members, from, to, frame, skip, mayBlock);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        sendSlice(members, 0, FANOUT_SLICE, frame, skip, mayBlock); // the caller takes the first slice
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sendSlice(Connection[] members, int from, int to, byte[] frame, Connection skip,
+                                  boolean mayBlock) {
+        for (int i = from; i < to; i++) {
+            if (members[i] != skip) members[i].sendFrame(frame, mayBlock);
+        }
+    }
+}
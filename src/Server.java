@@ -1,66 +1,595 @@
+import javax.net.ssl.SSLContext;
 import java.io.*;
 import java.net.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 public class Server {
-    private static final int PORT = 59090;
+    // client number -> connection (ClientHandler, NioConnection or RemoteConnection)
+    private static final ClientRegistry clients = new ClientRegistry();
 
-    // clientId -> handler
-    private static final ConcurrentHashMap<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    private static final AtomicInteger clientCounter = new AtomicInteger(1);
 
-    public static void main(String[] args) {
-        System.out.println("Server listening on port " + PORT);
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            int clientCounter = 1;
+    // Connect/disconnect storms coalesce into at most one table dump per interval
+    private static final long TABLE_DUMP_INTERVAL_MS = 1000;
+    private static final int TABLE_DUMP_MAX_ROWS = 50;
+    private static final AtomicBoolean tableDumpPending = new AtomicBoolean();
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "server-timer");
+        t.setDaemon(true);
+        return t;
+    });
 
-            while (true) {
-                Socket socket = serverSocket.accept();
-                String clientId = "Client" + clientCounter++;
-                ClientHandler handler = new ClientHandler(socket, clientId);
-                new Thread(handler).start();
+    private static volatile ServerOptions options = new ServerOptions();
+
+    // Graceful shutdown: the hook stops 'listener' (no new clients), then drains
+    private static volatile Closeable listener;
+    private static volatile boolean shuttingDown;
+
+    // Offline delivery (--store): chats to a departed client number are kept
+    // for its last username and sent when someone with that username connects
+    private static final int DEPARTED_MAX = 100_000;
+    private static final long STORE_RETRY_MS = 50;
+    private static volatile MessageStore store;
+    private static final Map<Integer, String> departed = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                    return size() > DEPARTED_MAX;
+                }
+            });
+
+    // Reconnect: a client gets its number back only with the token from its last welcome.
+    // With --store the tokens and the counter outlive a graceful restart, in RESUME_FILE there.
+    private static final int RESUME_MAX = 100_000;
+    private static final String RESUME_FILE = "resume-tokens";
+    private static final SecureRandom random = new SecureRandom();
+    private static final Map<Integer, String> resumeTokens = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                    return size() > RESUME_MAX;
+                }
+            });
+
+    public static void main(String[] args) {
+        ServerOptions options = ServerOptions.parse(args);
+        Server.options = options;
+        Log.setLevel(options.logLevel);
+        Log.setSampleEvery(options.logSampleEvery);
+        if (options.metricsPort >= 0) {
+            try {
+                Metrics.startHttp(options.metricsPort);
+                Log.info("Metrics at http://127.0.0.1:" + options.metricsPort + "/metrics");
+            } catch (IOException e) {
+                Log.error("Metrics endpoint failed to start: " + e.getMessage());
+            }
+        }
+        MessageCodec.setJavaSerialization(options.javaSerialization);
+        Heartbeats.start(options.heartbeatSeconds, options.idleTimeoutSeconds, timer);
+        Thread shutdownHook = new Thread(Server::shutdown, "server-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        Log.flushAfter(shutdownHook);
+        try {
+            SSLContext tls = null;
+            if (options.tlsKeystore != null) {
+                tls = Tls.serverContext(Paths.get(options.tlsKeystore), options.tlsPassword.toCharArray());
+            }
+            if (options.nodeId >= 0) {
+                Cluster.start(options, tls);
+                Log.info("Cluster node " + options.nodeId
+                        + (options.clusterPort >= 0 ? ", links on " + (options.clusterBind == null ? "loopback" : options.clusterBind)
+                                + " port " + options.clusterPort : "")
+                        + ", peers " + String.join(",", options.peers) + (tls != null ? " (TLS)" : ""));
+            }
+            if (options.storeDir != null) {
+                loadResumeTokens(Paths.get(options.storeDir, RESUME_FILE));
+                MessageStore s = new MessageStore(Paths.get(options.storeDir),
+                        options.storeSegmentMb << 20, TimeUnit.HOURS.toMillis(options.storeRetentionHours));
+                s.scheduleOn(timer);
+                store = s; // closed by shutdown()
+                Log.info("Message store at " + options.storeDir);
+            }
+            String transport = tls == null ? "" : ", TLS";
+            if (options.nio) {
+                NioServer server = new NioServer(options.port, options.eventLoops, tls);
+                Log.info("Server listening on port " + server.getPort()
+                        + " (nio, " + options.eventLoops + " event loops" + transport + ")");
+                listener = server::stopAccepting;
+                server.start();
+                server.awaitTermination();
+            } else {
+                try (ServerSocket serverSocket = tls == null ? new ServerSocket(options.port)
+                        : Tls.serverSocket(tls, options.port)) {
+                    Log.info("Server listening on port " + options.port
+                            + (options.virtualThreads ? " (virtual threads" + transport + ")"
+                                    : tls != null ? " (TLS)" : ""));
+                    listener = serverSocket;
+                    serve(serverSocket, options.virtualThreads);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Graceful stop, run by the shutdown hook (SIGTERM, Ctrl-C): stop
+     * accepting, tell every local client, let each one's outbound queue drain
+     * and close the connection behind it, and give up on stragglers after
+     * --shutdown-timeout. Clients reconnect with backoff and ask for their
+     * previous IDs, so a restart costs them a notice and a short gap (with
+     * --store, which keeps their resume tokens; otherwise they get new IDs).
+     */
+    static void shutdown() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.shutdownTimeoutSeconds);
+        shuttingDown = true;
+        Closeable l = listener;
+        if (l != null) {
+            try { l.close(); } catch (IOException ignored) {}
+        }
+        List<Connection> local = localClients();
+        Log.info("Shutting down; draining " + local.size() + " client(s)");
+        byte[] notice = MessageCodec.encode(new Message("SYSTEM",
+                "Server is shutting down. Reconnecting shortly...", "Server", null));
+        for (Connection c : local) {
+            c.sendFrame(notice, false); // a full queue must not hold up the rest of the drain
+            c.drainAndClose();
+        }
+        int open;
+        while ((open = countOpen(local)) > 0 && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        if (open > 0) Log.warn(open + " client(s) had not drained by the deadline");
+        MessageStore s = store;
+        if (s != null) {
+            s.close();
+            saveResumeTokens(Paths.get(options.storeDir, RESUME_FILE));
+        }
+        Log.info("Shutdown complete");
+    }
+
+    static boolean isShuttingDown() {
+        return shuttingDown;
+    }
+
+    private static int countOpen(List<Connection> conns) {
+        int open = 0;
+        for (Connection c : conns) {
+            if (c.isOpen()) open++;
+        }
+        return open;
+    }
+
+    /**
+     * Thread-per-connection accept loop. Returns when the server socket is closed.
+     * With virtualThreads each handler gets a virtual thread, so a blocked
+     * readObject costs a small heap-allocated stack instead of a platform thread.
+     */
+    static void serve(ServerSocket serverSocket, boolean virtualThreads) throws IOException {
+        Thread.Builder threads = virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform();
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException closed) {
+                return;
+            }
+            // A TLS handshake is several small writes; Nagle would hold each back for an ACK
+            socket.setTcpNoDelay(true);
+            int number = nextClientNumber();
+            threads.name(Message.clientId(number)).start(new ClientHandler(socket, number));
+        }
+    }
+
+    static OutboundQueue newOutboundQueue() {
+        ServerOptions o = options;
+        return new OutboundQueue(o.queueCapacity, o.overflow, o.blockTimeoutMillis);
+    }
+
+    /**
+     * Compression for a connection whose intro frame has these flags: null
+     * unless the client offered it and --compression is on.
+     */
+    static Compression acceptCompression(int introFlags) {
+        ServerOptions o = options;
+        if (!o.compression || !Compression.offered(introFlags)) return null;
+        return new Compression(Compression.LEVEL, o.compressMin, true);
+    }
+
+    /** Rate-limit buckets for a new connection, or null without --rate-limit. */
+    static RateLimiter.Bucket newRateBucket() {
+        RateLimiter limits = options.rateLimits;
+        return limits == null ? null : limits.newBucket();
+    }
+
+    /**
+     * Count a message that arrived over its sender's rate limit. Returns true
+     * if the sender is to be disconnected (--rate-limit-action=disconnect),
+     * after telling it why; otherwise its reader waits for the message.
+     */
+    static boolean rateLimited(Connection conn, RateLimiter.Bucket bucket, int type) {
+        Metrics.increment(Metrics.rateLimited[type]);
+        if (bucket.action() != RateLimiter.Action.DISCONNECT) return false;
+        Metrics.increment(Metrics.rateLimitDisconnects);
+        Log.warn("Disconnecting " + conn.getClientId() + ": over its rate limit (" + MessageCodec.typeName(type) + ")");
+        conn.sendMessage(new Message("SYSTEM_ERROR", "Rate limit exceeded. Disconnecting.",
+                "Server", conn.getClientId()));
+        return true;
+    }
+
+    /** Run a task on the server timer thread after a delay. */
+    static void schedule(Runnable task, long delayNanos) {
+        timer.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Numbers are interleaved by node id when clustered, so they are unique cluster-wide. */
+    static int nextClientNumber() {
+        int n = clientCounter.getAndIncrement();
+        return Cluster.enabled() ? Cluster.globalNumber(n) : n;
+    }
+
+    /**
+     * Whether a reconnecting client may have number back: one this node has
+     * handed out, with the token its last welcome carried.
+     */
+    private static boolean reclaimable(int number, String token) {
+        if (number <= 0 || token == null) return false;
+        int n = number;
+        if (Cluster.enabled()) {
+            if (number % Cluster.MAX_NODES != Cluster.nodeId()) return false;
+            n = number / Cluster.MAX_NODES;
+        }
+        if (n >= clientCounter.get()) return false;
+        String expected = resumeTokens.get(number);
+        return expected != null && MessageDigest.isEqual(expected.getBytes(), token.getBytes());
+    }
+
+    /** Restore what saveResumeTokens wrote: "next N", then "number token" per line. */
+    private static void loadResumeTokens(Path file) {
+        if (!Files.exists(file)) return;
+        try {
+            for (String line : Files.readAllLines(file)) {
+                String[] f = line.split(" ");
+                if (f.length != 2) continue;
+                if (f[0].equals("next")) {
+                    clientCounter.set(Math.max(clientCounter.get(), Integer.parseInt(f[1])));
+                } else {
+                    resumeTokens.put(Integer.parseInt(f[0]), f[1]);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.warn("Ignoring " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static void saveResumeTokens(Path file) {
+        StringBuilder sb = new StringBuilder("next ").append(clientCounter.get()).append('\n');
+        synchronized (resumeTokens) {
+            resumeTokens.forEach((number, token) -> sb.append(number).append(' ').append(token).append('\n'));
+        }
+        try {
+            Path tmp = file.resolveSibling(RESUME_FILE + ".tmp");
+            Files.deleteIfExists(tmp);
+            Files.createFile(tmp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            Files.writeString(tmp, sb);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | UnsupportedOperationException e) {
+            Log.warn("Could not save resume tokens: " + e.getMessage());
+        }
+    }
+
+    /** A new token for number, replacing any earlier one. */
+    private static String issueResumeToken(int number) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : bytes) sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        String token = sb.toString();
+        resumeTokens.put(number, token);
+        return token;
+    }
+
+    /**
+     * Apply the username handshake to the first message of a connection.
+     * Returns false if the connection should be closed.
+     */
+    static boolean handshake(Connection conn, Message intro) {
+        if (!"SYSTEM".equals(intro.getType())) {
+            conn.sendMessage(new Message("SYSTEM_ERROR",
+                    "Expected username handshake. Disconnecting.",
+                    "Server", conn.getClientId()));
+            return false;
+        }
+        if (shuttingDown) {
+            conn.sendMessage(new Message("SYSTEM_ERROR", "Server is shutting down.", "Server", conn.getClientId()));
+            return false;
+        }
+        String username = intro.getText() == null ? "" : intro.getText();
+        String token = null;
+        int mark = username.indexOf(MessageCodec.RESUME_MARK);
+        if (mark >= 0) {
+            token = username.substring(mark + MessageCodec.RESUME_MARK.length());
+            username = username.substring(0, mark);
+        }
+        // Usernames go into line-based text (/list rows, PRESENCE "+id name" deltas)
+        if (username.chars().anyMatch(Character::isISOControl)) {
+            conn.sendMessage(new Message("SYSTEM_ERROR",
+                    "Usernames cannot contain control characters. Disconnecting.",
+                    "Server", conn.getClientId()));
+            return false;
+        }
+        conn.setUsername(username);
+
+        // A reconnecting client sends its previous ID as 'from' and its token,
+        // and gets the ID back if the token matches and the ID is free
+        int fresh = conn.getClientNumber();
+        int previous = intro.getFromNumber();
+        if (previous != fresh && reclaimable(previous, token)) conn.setClientNumber(previous);
+        // Register and greet (client learns its ID from the 'to' field)
+        if (!addClient(conn)) {
+            // Still held (say, by the old half-open connection). A fresh number
+            // is taken only if another client reclaimed it first.
+            conn.setClientNumber(fresh);
+            while (!addClient(conn)) conn.setClientNumber(nextClientNumber());
+        }
+        boolean resumed = conn.getClientNumber() == previous;
+        conn.sendMessage(new Message(
+                "SYSTEM",
+                "Welcome " + (resumed ? "back " : "") + conn.getUsername() + "! Your ID is " + conn.getClientId()
+                        + MessageCodec.RESUME_MARK + issueResumeToken(conn.getClientNumber()),
+                "Server",
+                conn.getClientId()
+        ));
+        if (store != null) timer.execute(() -> deliverStored(conn, true));
+        return true;
+    }
+
+    /**
+     * Send stored messages for this connection's username, as many per pass
+     * as fit in its outbound queue, rescheduling until all are delivered or
+     * the client is gone. Runs on the timer thread, not the reader/event loop,
+     * and never waits on the client's queue: that would hold up every timer task.
+     */
+    private static void deliverStored(Connection conn, boolean first) {
+        MessageStore s = store;
+        String username = conn.getUsername();
+        if (clients.get(conn.getClientNumber()) != conn) return;
+        int pending = s.pendingFor(username);
+        if (pending == 0) return;
+        if (first) {
+            conn.sendFrame(MessageCodec.encode(new Message("SYSTEM",
+                    "You have " + pending + " message(s) received while offline",
+                    "Server", conn.getClientId())), false);
+        }
+        OutboundQueue q = conn.getOutbound();
+        int room = q.capacity() - q.depth();
+        if (room > 0) {
+            List<byte[]> frames = s.take(username, Math.min(room, 256));
+            for (byte[] frame : frames) conn.sendFrame(frame, false);
+            if (Metrics.enabled()) Metrics.storedDelivered.add(frames.size());
+            if (frames.size() == pending) return;
+        }
+        timer.schedule(() -> deliverStored(conn, false), STORE_RETRY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Handle a message from an already registered connection. */
+    static void onMessage(Connection conn, Message msg) {
+        long start = System.nanoTime();
+        String clientId = conn.getClientId();
+
+        // Heartbeats: the read itself was the activity, nothing to route
+        String type = msg.getType();
+        if ("PONG".equals(type)) return;
+        if ("PING".equals(type)) {
+            conn.sendMessage(new Message("PONG", null, "Server", clientId));
+            return;
+        }
+
+        // Enforce sender identity
+        if (conn.getClientNumber() != msg.getFromNumber()) {
+            Metrics.increment(Metrics.spoofRejections);
+            Log.warn("Spoof attempt: " + clientId + " claimed " + msg.getFrom());
+            conn.sendMessage(new Message("SYSTEM_ERROR",
+                    "Invalid 'from' ID. Your ID is " + clientId,
+                    "Server", clientId));
+            return;
+        }
+
+        // Log (sampled, built only when kept) and forward
+        if (Log.sampled(Log.Level.INFO)) {
+            Log.info(conn.getUsername() + " (" + clientId + "): " + msg.getType() + " -> " + msg.getText());
+        }
+        forwardMessage(msg);
+        Metrics.routed(MessageCodec.typeCode(msg.getType()), start);
+    }
+
+    /**
+     * Forward a FILE_CHUNK frame as it was read. Only the sender and
+     * recipient are peeked from its header: the data is not decoded or
+     * copied again, and it goes in the recipient's bulk lane, behind its chat
+     * traffic. Flow control is end to end (see FileTransfer), so the lane
+     * stays short.
+     */
+    static void relayChunk(Connection conn, byte[] frame) throws IOException {
+        long start = System.nanoTime();
+        if (MessageCodec.frameFrom(frame) != conn.getClientNumber()) {
+            onMessage(conn, MessageCodec.decodeFrame(frame)); // rejected there, with the usual warning
+            return;
+        }
+        int to = MessageCodec.frameTo(frame);
+        Connection recipient = clients.get(to);
+        if (recipient != null) {
+            recipient.sendBulkFrame(frame);
+        } else {
+            cancelTransfer(conn, Message.clientId(to), MessageCodec.decodeFrame(frame).getText());
+        }
+        Metrics.routed(MessageCodec.FILE_CHUNK, start);
+    }
+
+    /** Tell a client its transfer partner is gone, as if the partner had cancelled ("id reason"). */
+    private static void cancelTransfer(Connection conn, String peer, String text) {
+        String id = text == null ? "" : text.split(" ", 2)[0];
+        conn.sendMessage(new Message("FILE_CANCEL", id + " " + peer + " is not available",
+                peer, conn.getClientId()));
+    }
+
+    /** True once conn has completed the handshake and until it is removed. */
+    static boolean isRegistered(Connection conn) {
+        return clients.get(conn.getClientNumber()) == conn;
+    }
+
+    /** Register a local client. False if its number is already taken. */
+    static boolean addClient(Connection conn) {
+        if (clients.putIfAbsent(conn) != null) return false;
+        ClientDirectory.add(conn);
+        if (Cluster.enabled()) Cluster.announceJoin(conn);
+        Metrics.increment(Metrics.connectionsOpened);
+        Log.info(conn.getUsername() + " (" + conn.getClientId() + ") connected.");
+        scheduleClientTableDump();
+        return true;
+    }
+
+    static void removeClient(Connection conn) {
+        int number = conn.getClientNumber();
+        if (clients.remove(number, conn)) {
+            ClientDirectory.remove(conn);
+            if (Cluster.enabled()) Cluster.announceLeave(number);
+            Metrics.increment(Metrics.connectionsClosed);
+            if (store != null) departed.put(number, conn.getUsername());
+            for (String name : Rooms.leaveAll(conn)) {
+                Rooms.Room room = Rooms.get(name);
+                if (room != null) {
+                    Rooms.broadcast(room, new Message("ROOM_CHAT", conn.getUsername() + " left", "Server", name), null);
+                }
+            }
+        }
+        Log.info(conn.getClientId() + " disconnected.");
+        scheduleClientTableDump();
+    }
+
+    // ---- directory entries for clients on other cluster nodes ----
+
+    static void addRemote(RemoteConnection conn) {
+        if (Cluster.ownedBy(conn.getClientNumber(), Cluster.nodeId())) return; // never shadow our own clients
+        Connection old = clients.put(conn);
+        if (old != null) ClientDirectory.remove(old);
+        ClientDirectory.add(conn);
+        scheduleClientTableDump();
+    }
+
+    static void removeRemote(int number) {
+        Connection conn = clients.get(number);
+        if (conn instanceof RemoteConnection && clients.remove(number, conn)) {
+            ClientDirectory.remove(conn);
+            scheduleClientTableDump();
+        }
+    }
+
+    /** Forget every client of a node whose link went down. */
+    static void removeNode(int node) {
+        int removed = 0;
+        for (Connection c : clients) {
+            if (c instanceof RemoteConnection && ((RemoteConnection) c).node == node
+                    && clients.remove(c.getClientNumber(), c)) {
+                ClientDirectory.remove(c);
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            Log.info("Cluster node " + node + " left; " + removed + " of its clients are no longer reachable");
+            scheduleClientTableDump();
+        }
+    }
+
+    /** Deliver a frame routed here by another node to a local client. */
+    static void deliverRouted(int to, byte[] frame) {
+        Connection conn = clients.get(to);
+        if (conn == null || conn instanceof RemoteConnection) return;
+        if (MessageCodec.frameTypeCode(frame) == MessageCodec.FILE_CHUNK) {
+            conn.sendBulkFrame(frame);
+        } else {
+            conn.sendFrame(frame);
+        }
+    }
+
+    /** Tell the local sender of a frame that it could not be routed to recipientId's node. */
+    static void routeDropped(byte[] frame, String recipientId) {
+        // File chunks are covered by the transfer's own gap detection; one notice per chunk would flood
+        if (MessageCodec.frameTypeCode(frame) == MessageCodec.FILE_CHUNK) return;
+        Connection sender;
+        try {
+            sender = clients.get(MessageCodec.frameSender(frame));
+        } catch (IOException e) {
+            return;
         }
+        if (sender == null || sender instanceof RemoteConnection) return;
+        sender.sendMessage(new Message(
+                "SYSTEM_ERROR",
+                "Recipient not available: " + recipientId,
+                "Server",
+                sender.getClientId()
+        ));
     }
 
-    static void addClient(ClientHandler handler) {
-        clients.put(handler.getClientId(), handler);
-        printConnectedClients();
+    static List<Connection> localClients() {
+        List<Connection> local = new ArrayList<>();
+        for (Connection c : clients) {
+            if (!(c instanceof RemoteConnection)) local.add(c);
+        }
+        return local;
     }
 
-    static void removeClient(String clientId) {
-        clients.remove(clientId);
-        System.out.println(clientId + " disconnected.");
-        printConnectedClients();
+    static int clientCount() {
+        return clients.size();
     }
 
-    static boolean clientExists(String clientId) {
-        return clients.containsKey(clientId);
+    /** Frames waiting in local clients' outbound queues (walks the table; for metrics scrapes). */
+    static long queuedFrames() {
+        long n = 0;
+        for (Connection c : clients) {
+            if (!(c instanceof RemoteConnection)) n += c.getOutbound().depth();
+        }
+        return n;
+    }
+
+    static boolean clientExists(int number) {
+        return clients.contains(number);
     }
 
     static void forwardMessage(Message msg) {
         switch (msg.getType()) {
             case "SYSTEM":
-                if ("/list".equalsIgnoreCase(msg.getText())) {
-                    // Reply only to requester with the current list
-                    ClientHandler requester = clients.get(msg.getFrom());
-                    if (requester != null) {
-                        requester.sendMessage(new Message(
-                                "SYSTEM_LIST",
-                                getClientList(),
-                                "Server",
-                                requester.getClientId()
-                        ));
-                    }
-                }
+                directoryCommand(msg);
                 break;
 
             case "CONNECT_REQUEST": {
-                ClientHandler recipient = clients.get(msg.getTo());
+                Connection recipient = clients.get(msg.getToNumber());
                 if (recipient == null) {
                     // Inform sender: no such client
-                    ClientHandler sender = clients.get(msg.getFrom());
+                    Connection sender = clients.get(msg.getFromNumber());
                     if (sender != null) {
                         sender.sendMessage(new Message(
                                 "SYSTEM_ERROR",
@@ -79,12 +608,22 @@ public class Server {
             case "CONNECT_ACCEPT":
             case "CONNECT_DENY":
             case "CHAT": {
-                ClientHandler recipient = clients.get(msg.getTo());
+                Connection recipient = clients.get(msg.getToNumber());
                 if (recipient != null) {
                     recipient.sendMessage(msg);
+                } else if ("CHAT".equals(msg.getType()) && storeForLater(msg)) {
+                    Connection sender = clients.get(msg.getFromNumber());
+                    if (sender != null) {
+                        sender.sendMessage(new Message(
+                                "SYSTEM",
+                                msg.getTo() + " is offline; message saved for delivery",
+                                "Server",
+                                sender.getClientId()
+                        ));
+                    }
                 } else {
                     // Inform sender if recipient vanished
-                    ClientHandler sender = clients.get(msg.getFrom());
+                    Connection sender = clients.get(msg.getFromNumber());
                     if (sender != null) {
                         sender.sendMessage(new Message(
                                 "SYSTEM_ERROR",
@@ -97,121 +636,328 @@ public class Server {
                 break;
             }
 
+            case "FILE_OFFER":
+            case "FILE_ACCEPT":
+            case "FILE_CREDIT":
+            case "FILE_CANCEL": {
+                Connection recipient = clients.get(msg.getToNumber());
+                if (recipient != null) {
+                    recipient.sendMessage(msg);
+                } else if (!"FILE_CANCEL".equals(msg.getType())) {
+                    Connection sender = clients.get(msg.getFromNumber());
+                    if (sender != null) cancelTransfer(sender, msg.getTo(), msg.getText());
+                }
+                break;
+            }
+
+            case "ROOM_JOIN":
+            case "ROOM_LEAVE":
+            case "ROOM_CHAT":
+                forwardRoomMessage(msg);
+                break;
+
             default:
                 // ignore unknown types
                 break;
         }
     }
 
-    private static String getClientList() {
-        StringBuilder sb = new StringBuilder("Connected Clients:\n");
-        if (clients.isEmpty()) {
-            sb.append("  (none)\n");
-        } else {
-            for (ClientHandler h : clients.values()) {
-                sb.append(" - ").append(h.getUsername())
-                        .append(" (").append(h.getClientId()).append(")\n");
+    /** Persist a chat for a departed recipient. False if there is no store or the id is unknown. */
+    private static boolean storeForLater(Message msg) {
+        MessageStore s = store;
+        if (s == null || msg.getToNumber() < 0) return false;
+        String username = departed.get(msg.getToNumber());
+        if (username == null || !s.append(username, MessageCodec.encode(msg))) return false;
+        Metrics.increment(Metrics.storedMessages);
+        return true;
+    }
+
+    private static void forwardRoomMessage(Message msg) {
+        Connection sender = clients.get(msg.getFromNumber());
+        if (sender == null) return;
+
+        if ("ROOM_CHAT".equals(msg.getType())) {
+            Rooms.Room room = Rooms.get(msg.getTo());
+            if (room == null || !room.contains(sender)) {
+                sender.sendMessage(new Message("SYSTEM_ERROR",
+                        "You are not in room " + msg.getTo(), "Server", sender.getClientId()));
+                return;
             }
+            // The sender already shows its own line
+            Rooms.broadcast(room, msg, sender);
+            return;
+        }
+
+        String name = msg.getText() == null ? "" : msg.getText().trim();
+        if (name.isEmpty()) {
+            sender.sendMessage(new Message("SYSTEM_ERROR", "Room name required", "Server", sender.getClientId()));
+            return;
+        }
+        boolean joining = "ROOM_JOIN".equals(msg.getType());
+        boolean changed = joining ? Rooms.join(name, sender) : Rooms.leave(name, sender);
+        if (!changed) {
+            sender.sendMessage(new Message("SYSTEM_ERROR",
+                    (joining ? "Already in room " : "Not in room ") + name, "Server", sender.getClientId()));
+            return;
+        }
+        Rooms.Room room = Rooms.get(name);
+        if (joining) {
+            sender.sendMessage(new Message("ROOM_JOIN", name, "Server", sender.getClientId()));
+        }
+        if (room != null) {
+            Rooms.broadcast(room, new Message("ROOM_CHAT",
+                    sender.getUsername() + (joining ? " joined" : " left"), "Server", name), sender);
+        }
+    }
+
+    /**
+     * Directory commands, answered only to the requester:
+     *   /list [page]            everyone, a page at a time
+     *   /find <prefix> [page]   usernames starting with prefix
+     *   /subscribe, /unsubscribe  presence pushes (PRESENCE messages)
+     */
+    private static void directoryCommand(Message msg) {
+        Connection requester = clients.get(msg.getFromNumber());
+        String text = msg.getText();
+        if (requester == null || text == null) return;
+        String[] args = text.trim().split("\\s+");
+        String reply;
+        switch (args[0].toLowerCase()) {
+            case "/list":
+                reply = ClientDirectory.page("", pageArg(args, 1));
+                break;
+            case "/find":
+                if (args.length < 2) {
+                    requester.sendMessage(new Message("SYSTEM_ERROR", "Usage: /find <prefix> [page]",
+                            "Server", requester.getClientId()));
+                    return;
+                }
+                reply = ClientDirectory.page(args[1], pageArg(args, 2));
+                break;
+            case "/subscribe":
+                requester.sendMessage(new Message("SYSTEM", ClientDirectory.subscribe(requester)
+                        ? "Subscribed to presence updates" : "Already subscribed", "Server", requester.getClientId()));
+                return;
+            case "/unsubscribe":
+                ClientDirectory.unsubscribe(requester);
+                requester.sendMessage(new Message("SYSTEM", "Unsubscribed from presence updates",
+                        "Server", requester.getClientId()));
+                return;
+            default:
+                return;
+        }
+        requester.sendMessage(new Message("SYSTEM_LIST", reply, "Server", requester.getClientId()));
+    }
+
+    private static int pageArg(String[] args, int i) {
+        if (args.length <= i) return 1;
+        try {
+            return Math.min(Integer.parseInt(args[i]), ClientDirectory.MAX_PAGE);
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    private static void scheduleClientTableDump() {
+        if (tableDumpPending.compareAndSet(false, true)) {
+            timer.schedule(Server::printConnectedClients, TABLE_DUMP_INTERVAL_MS, TimeUnit.MILLISECONDS);
         }
-        return sb.toString();
     }
 
     private static void printConnectedClients() {
-        System.out.println("=== Connected Clients ===");
-        if (clients.isEmpty()) {
-            System.out.println("None");
+        tableDumpPending.set(false);
+        StringBuilder sb = new StringBuilder("=== Connected Clients (").append(clients.size()).append(") ===\n");
+        if (clients.size() == 0) {
+            sb.append("None\n");
         } else {
-            for (ClientHandler h : clients.values()) {
-                System.out.println(" - " + h.getUsername() + " (" + h.getClientId() + ")");
+            int rows = 0;
+            for (Connection h : clients) {
+                if (rows++ == TABLE_DUMP_MAX_ROWS) {
+                    sb.append(" ... and ").append(clients.size() - TABLE_DUMP_MAX_ROWS).append(" more\n");
+                    break;
+                }
+                OutboundQueue q = h.getOutbound();
+                sb.append(" - ").append(h.getUsername()).append(" (").append(h.getClientId()).append(")")
+                        .append(" queued=").append(q.depth()).append(" dropped=").append(q.drops()).append('\n');
             }
         }
-        System.out.println("=========================");
+        sb.append("=========================");
+        Log.info(sb.toString());
     }
 }
 
-class ClientHandler implements Runnable {
+class ClientHandler implements Runnable, Connection {
     private final Socket socket;
-    private final String clientId;
-    private String username = "(unknown)";
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private int clientNumber; // changes only before registration (a reclaimed ID)
+    private String clientId;
+    private volatile String username = "(unknown)";
+    private OutputStream out;
+    private DataInputStream in;
 
-    ClientHandler(Socket socket, String clientId) {
+    // Other handlers only enqueue; the writer thread is the only one touching 'out'
+    private final OutboundQueue outbound = Server.newOutboundQueue();
+    private Thread writer;
+    private final RateLimiter.Bucket limiter = Server.newRateBucket(); // null: unlimited
+    private final Heartbeats.Entry liveness;
+    private volatile Compression compression; // null: not negotiated; set before the welcome is queued
+
+    ClientHandler(Socket socket, int clientNumber) {
         this.socket = socket;
-        this.clientId = clientId;
+        this.clientNumber = clientNumber;
+        this.clientId = Message.clientId(clientNumber);
+        this.liveness = Heartbeats.track(this, this::closeSocket);
     }
 
-    String getClientId() { return clientId; }
-    String getUsername() { return username; }
+    @Override
+    public int getClientNumber() { return clientNumber; }
+    @Override
+    public String getClientId() { return clientId; }
+    @Override
+    public String getUsername() { return username; }
+    @Override
+    public void setUsername(String username) { this.username = username; }
+    @Override
+    public OutboundQueue getOutbound() { return outbound; }
+
+    @Override
+    public void setClientNumber(int number) {
+        clientNumber = number;
+        clientId = Message.clientId(number);
+    }
 
     @Override
     public void run() {
         try {
-            // IMPORTANT: create ObjectOutputStream before ObjectInputStream to avoid deadlock
-            out = new ObjectOutputStream(socket.getOutputStream());
-            out.flush();
-            in  = new ObjectInputStream(socket.getInputStream());
-
-            // Expect first message: username (SYSTEM type)
-            Message intro = (Message) in.readObject();
-            if (!"SYSTEM".equals(intro.getType())) {
-                sendMessage(new Message("SYSTEM_ERROR",
-                        "Expected username handshake. Disconnecting.",
-                        "Server", clientId));
+            out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+            in  = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            // Writer runs on the same kind of thread as this handler
+            Thread.Builder threads = Thread.currentThread().isVirtual() ? Thread.ofVirtual() : Thread.ofPlatform();
+            writer = threads.name(clientId + "-writer").start(this::writeLoop);
+
+            // Expect first message: username (SYSTEM type); its flags may offer compression
+            byte[] intro = MessageCodec.readFrame(in);
+            liveness.touch();
+            if (intro.length > MessageCodec.HEADER_BYTES) {
+                compression = Server.acceptCompression(intro[MessageCodec.HEADER_BYTES]);
+            }
+            if (!Server.handshake(this, MessageCodec.decodeFrame(intro))) {
                 closeAll();
                 return;
             }
-            this.username = intro.getText();
-
-            // Register and greet (client learns its ID from the 'to' field)
-            Server.addClient(this);
-            sendMessage(new Message(
-                    "SYSTEM",
-                    "Welcome " + username + "! Your ID is " + clientId,
-                    "Server",
-                    clientId
-            ));
 
-            // Main loop
+            // Main loop; file chunks are relayed as read, without decoding
             while (true) {
-                Message msg = (Message) in.readObject();
-
-                // Enforce sender identity
-                if (!clientId.equals(msg.getFrom())) {
-                    System.out.println("⚠️  Spoof attempt: " + clientId + " claimed " + msg.getFrom());
-                    sendMessage(new Message("SYSTEM_ERROR",
-                            "Invalid 'from' ID. Your ID is " + clientId,
-                            "Server", clientId));
+                byte[] frame = MessageCodec.readFrame(in);
+                liveness.touch();
+                if (compression != null && Compression.isCompressed(frame, MessageCodec.HEADER_BYTES,
+                        frame.length - MessageCodec.HEADER_BYTES)) {
+                    frame = compression.inflate(frame, MessageCodec.HEADER_BYTES, frame.length - MessageCodec.HEADER_BYTES);
+                }
+                if (MessageCodec.frameTypeCode(frame) == MessageCodec.FILE_CHUNK) {
+                    if (limiter != null && !throttle(MessageCodec.FILE_CHUNK)) break;
+                    Server.relayChunk(this, frame);
                     continue;
                 }
-
-                // Log and forward
-                System.out.println(username + " (" + clientId + "): " + msg.getType() + " -> " + msg.getText());
-                Server.forwardMessage(msg);
+                Message msg = MessageCodec.decodeFrame(frame);
+                if (limiter != null && !throttle(MessageCodec.typeCode(msg.getType()))) break;
+                Server.onMessage(this, msg);
             }
         } catch (EOFException eof) {
             // client closed connection
         } catch (Exception e) {
-            System.out.println("Client error (" + clientId + "): " + e.getMessage());
+            if (!Server.isShuttingDown()) Log.warn("Client error (" + clientId + "): " + e.getMessage());
         } finally {
-            Server.removeClient(clientId);
+            liveness.untrack();
+            Server.removeClient(this);
             closeAll();
+            if (compression != null) compression.endReader();
         }
     }
 
-    void sendMessage(Message msg) {
+    /** Wait until a message of this type is within the rate limit. False if the client is to be disconnected instead. */
+    private boolean throttle(int type) {
+        long wait = limiter.acquire(type, System.nanoTime());
+        if (wait == 0) return true;
+        if (Server.rateLimited(this, limiter, type)) return false;
+        // Nothing is read meanwhile, so the client's sends back up in TCP
+        do {
+            LockSupport.parkNanos(wait);
+        } while ((wait = limiter.acquire(type, System.nanoTime())) > 0);
+        return true;
+    }
+
+    @Override
+    public void sendFrame(byte[] frame, boolean mayBlock) {
+        OutboundQueue.Offer result = outbound.offer(frame, mayBlock);
+        if (result == OutboundQueue.Offer.DISCONNECT) {
+            Metrics.increment(Metrics.slowConsumerDisconnects);
+            Log.warn("Disconnecting slow consumer " + clientId
+                    + " (" + outbound.depth() + " messages queued)");
+            closeSocket();
+        }
+    }
+
+    @Override
+    public void sendBulkFrame(byte[] frame) {
+        outbound.offerBulk(frame);
+    }
+
+    /** Make the reader fail, so it removes the client and cleans up. Any thread. */
+    private void closeSocket() {
+        try { socket.close(); } catch (IOException ignored) {}
+    }
+
+    @Override
+    public void drainAndClose() {
+        // The writer empties the queue, then closes the socket behind it
+        outbound.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    /** Drain the outbound queue, writing whatever is pending with one flush. */
+    private void writeLoop() {
+        byte[][] batch = new byte[64][];
         try {
-            out.writeObject(msg);
-            out.flush();
+            int n;
+            while ((n = outbound.awaitBatch(batch)) > 0) {
+                Compression c = compression;
+                for (int i = 0; i < n; i++) {
+                    out.write(c == null ? batch[i] : c.compress(batch[i]));
+                    batch[i] = null;
+                }
+                out.flush();
+            }
+            closeSocket(); // queue closed and written out
         } catch (IOException e) {
-            System.out.println("Send failed to " + clientId + ": " + e.getMessage());
+            Metrics.increment(Metrics.sendFailures);
+            Log.warn("Send failed to " + clientId + ": " + e.getMessage());
+            outbound.close();
+            try { socket.close(); } catch (IOException ignored) {}
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Compression c = compression;
+            if (c != null) c.endWriter();
         }
     }
 
     private void closeAll() {
+        // Let the writer flush what is already queued (e.g. a handshake error) first
+        outbound.close();
+        if (writer != null && writer != Thread.currentThread()) {
+            try {
+                writer.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         try { if (in != null) in.close(); } catch (IOException ignored) {}
         try { if (out != null) out.close(); } catch (IOException ignored) {}
         try { socket.close(); } catch (IOException ignored) {}
     }
 }
-
@@ -0,0 +1,252 @@
+/**
+ * Command line options for Server. Flags use the form --name or --name=value.
+ *
+ *   --port=N     listening port (default 59090)
+ *   --nio        non-blocking selector mode instead of thread-per-connection
+ *   --loops=N    number of selector threads in --nio mode
+ *   --virtual    run each ClientHandler on a virtual thread (blocking mode only)
+ *   --serialization=java|binary
+ *                frame payload format sent by the server (default binary);
+ *                Java-serialized frames are only accepted with java
+ *   --queue=N    outbound queue capacity per client, in messages (default 1024)
+ *   --overflow=drop-oldest|disconnect|block
+ *                what to do when a client's outbound queue is full
+ *   --block-timeout=MS
+ *                how long a sender waits under --overflow=block before dropping
+ *   --log-level=debug|info|warn|error
+ *   --log-sample=N
+ *                log one in N routed messages (1 = all, 0 = none)
+ *   --metrics-port=N
+ *                serve Prometheus-style metrics on 127.0.0.1:N/metrics
+ *   --store=DIR  keep chats for offline users in DIR and deliver them on reconnect
+ *   --store-retention=HOURS
+ *                undelivered messages older than this are discarded (default 72)
+ *   --store-segment=MB
+ *                size of each memory-mapped store segment (default 64)
+ *   --node-id=N  run as cluster node N (0-15); client IDs become cluster-wide
+ *   --cluster-port=N
+ *                port other nodes connect to (cluster mode)
+ *   --cluster-bind=ADDR
+ *                address the cluster port listens on (default loopback)
+ *   --cluster-secret=S, --cluster-secret-file=PATH
+ *                shared secret every node proves on its links (required in cluster mode)
+ *   --peers=host:port,...
+ *                cluster ports of the other nodes
+ *   --tls[=KEYSTORE]
+ *                encrypt client connections with the key in a PKCS12 keystore
+ *                (default chat-tls.p12; created self-signed if missing)
+ *   --tls-password=PW
+ *                keystore password (default changeit)
+ *   --rate-limit=all:R[/B],TYPE:R[/B],...
+ *                per-client messages per second (and burst) in total and per type
+ *   --rate-limit-action=delay|disconnect
+ *                stop reading from a client over its limit (default) or drop it
+ *   --heartbeat=S
+ *                PING clients that have sent nothing for S seconds (default 15, 0 = off)
+ *   --idle-timeout=S
+ *                close connections that have sent nothing for S seconds, including
+ *                unanswered PINGs (default 45, 0 = off)
+ *   --shutdown-timeout=S
+ *                on SIGTERM, how long to let clients' queues drain before exiting (default 10)
+ *   --compression=on|off
+ *                deflate frames for clients that ask for it (default on)
+ *   --compress-min=B
+ *                send frames with fewer payload bytes uncompressed (default 32)
+ */
+final class ServerOptions {
+    int port = 59090;
+    boolean nio = false;
+    boolean virtualThreads = false;
+    boolean javaSerialization = false;
+    int queueCapacity = 1024;
+    OutboundQueue.Overflow overflow = OutboundQueue.Overflow.DROP_OLDEST;
+    long blockTimeoutMillis = 1000;
+    Log.Level logLevel = Log.Level.INFO;
+    int logSampleEvery = 1;
+    int metricsPort = -1;
+    String storeDir = null;
+    int storeRetentionHours = 72;
+    int storeSegmentMb = 64;
+    int nodeId = -1;
+    int clusterPort = -1;
+    String clusterBind = null;          // null: loopback
+    String clusterSecret = null;
+    String clusterSecretFile = null;
+    String[] peers = new String[0];
+    String tlsKeystore = null;
+    String tlsPassword = Tls.DEFAULT_PASSWORD;
+    RateLimiter rateLimits = null;
+    int heartbeatSeconds = 15;
+    int idleTimeoutSeconds = 45;
+    int shutdownTimeoutSeconds = 10;
+    boolean compression = true;
+    int compressMin = Compression.DEFAULT_THRESHOLD;
+    int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    static ServerOptions parse(String[] args) {
+        ServerOptions o = new ServerOptions();
+        String rateLimit = null;
+        RateLimiter.Action rateLimitAction = RateLimiter.Action.DELAY;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? null : arg.substring(eq + 1);
+            switch (name) {
+                case "--port":
+                    o.port = intValue(name, value);
+                    break;
+                case "--nio":
+                    o.nio = true;
+                    break;
+                case "--virtual":
+                    o.virtualThreads = true;
+                    break;
+                case "--serialization":
+                    o.javaSerialization = serialization(value);
+                    break;
+                case "--queue":
+                    o.queueCapacity = Math.max(1, intValue(name, value));
+                    break;
+                case "--overflow":
+                    o.overflow = overflow(value);
+                    break;
+                case "--block-timeout":
+                    o.blockTimeoutMillis = intValue(name, value);
+                    break;
+                case "--log-level":
+                    o.logLevel = logLevel(value);
+                    break;
+                case "--log-sample":
+                    o.logSampleEvery = intValue(name, value);
+                    break;
+                case "--metrics-port":
+                    o.metricsPort = intValue(name, value);
+                    break;
+                case "--store":
+                    if (value == null) throw new IllegalArgumentException(name + " needs a value");
+                    o.storeDir = value;
+                    break;
+                case "--store-retention":
+                    o.storeRetentionHours = Math.max(1, intValue(name, value));
+                    break;
+                case "--store-segment":
+                    o.storeSegmentMb = Math.max(1, Math.min(1024, intValue(name, value)));
+                    break;
+                case "--node-id":
+                    o.nodeId = intValue(name, value);
+                    break;
+                case "--cluster-port":
+                    o.clusterPort = intValue(name, value);
+                    break;
+                case "--cluster-bind":
+                    if (value == null) throw new IllegalArgumentException(name + " needs a value");
+                    o.clusterBind = value;
+                    break;
+                case "--cluster-secret":
+                    if (value == null || value.isEmpty()) throw new IllegalArgumentException(name + " needs a value");
+                    o.clusterSecret = value;
+                    break;
+                case "--cluster-secret-file":
+                    if (value == null) throw new IllegalArgumentException(name + " needs a value");
+                    o.clusterSecretFile = value;
+                    break;
+                case "--peers":
+                    if (value == null) throw new IllegalArgumentException(name + " needs a value");
+                    o.peers = value.isEmpty() ? new String[0] : value.split(",");
+                    break;
+                case "--tls":
+                    o.tlsKeystore = value == null ? Tls.DEFAULT_KEYSTORE : value;
+                    break;
+                case "--tls-password":
+                    if (value == null) throw new IllegalArgumentException(name + " needs a value");
+                    o.tlsPassword = value;
+                    break;
+                case "--rate-limit":
+                    if (value == null) throw new IllegalArgumentException(name + " needs a value");
+                    rateLimit = value;
+                    break;
+                case "--rate-limit-action":
+                    rateLimitAction = rateLimitAction(value);
+                    break;
+                case "--heartbeat":
+                    o.heartbeatSeconds = intValue(name, value);
+                    break;
+                case "--idle-timeout":
+                    o.idleTimeoutSeconds = intValue(name, value);
+                    break;
+                case "--shutdown-timeout":
+                    o.shutdownTimeoutSeconds = intValue(name, value);
+                    break;
+                case "--compression":
+                    o.compression = onOff(name, value);
+                    break;
+                case "--compress-min":
+                    o.compressMin = Math.max(0, intValue(name, value));
+                    break;
+                case "--loops":
+                    o.eventLoops = Math.max(1, intValue(name, value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (rateLimit != null) o.rateLimits = RateLimiter.parse(rateLimit, rateLimitAction);
+        if (o.idleTimeoutSeconds > 0 && o.idleTimeoutSeconds <= o.heartbeatSeconds) {
+            throw new IllegalArgumentException("--idle-timeout must be longer than --heartbeat");
+        }
+        if (o.nodeId < 0 && (o.clusterPort >= 0 || o.peers.length > 0)) {
+            throw new IllegalArgumentException("--cluster-port and --peers need --node-id");
+        }
+        if (o.nodeId >= 0 && o.clusterSecret == null && o.clusterSecretFile == null) {
+            throw new IllegalArgumentException("--node-id needs --cluster-secret or --cluster-secret-file");
+        }
+        return o;
+    }
+
+    /** Parses --serialization=java|binary; shared with Client. */
+    static boolean serialization(String value) {
+        if ("java".equals(value)) return true;
+        if ("binary".equals(value)) return false;
+        throw new IllegalArgumentException("--serialization expects java or binary, got " + value);
+    }
+
+    private static OutboundQueue.Overflow overflow(String value) {
+        if (value != null) {
+            switch (value) {
+                case "drop-oldest": return OutboundQueue.Overflow.DROP_OLDEST;
+                case "disconnect": return OutboundQueue.Overflow.DISCONNECT;
+                case "block": return OutboundQueue.Overflow.BLOCK;
+            }
+        }
+        throw new IllegalArgumentException("--overflow expects drop-oldest, disconnect or block, got " + value);
+    }
+
+    private static RateLimiter.Action rateLimitAction(String value) {
+        if ("delay".equals(value)) return RateLimiter.Action.DELAY;
+        if ("disconnect".equals(value)) return RateLimiter.Action.DISCONNECT;
+        throw new IllegalArgumentException("--rate-limit-action expects delay or disconnect, got " + value);
+    }
+
+    private static boolean onOff(String name, String value) {
+        if (value == null || "on".equals(value)) return true;
+        if ("off".equals(value)) return false;
+        throw new IllegalArgumentException(name + " expects on or off, got " + value);
+    }
+
+    private static Log.Level logLevel(String value) {
+        try {
+            return Log.Level.valueOf(String.valueOf(value).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("--log-level expects debug, info, warn or error, got " + value);
+        }
+    }
+
+    private static int intValue(String name, String value) {
+        if (value == null) throw new IllegalArgumentException(name + " needs a value");
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " expects a number, got " + value);
+        }
+    }
+}
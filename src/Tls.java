@@ -0,0 +1,334 @@
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TLS for client connections (--tls on Server and Client) and, on a
+ * server with --tls, for cluster links. Blocking mode listens on an
+ * SSLServerSocket; --nio runs an SSLEngine per connection through
+ * Tls.Engine, so encryption happens on the selector loop without a thread
+ * per connection.
+ *
+ * Handshakes are kept cheap: a P-256 key instead of RSA, TLS 1.3 first, and
+ * session resumption. The server issues session tickets and caches
+ * sessions; a client that keeps its SSLContext (Client holds one per
+ * process) resumes with a PSK handshake, skipping the certificate exchange.
+ *
+ * Without a keystore file, one with a self-signed localhost certificate is
+ * created with keytool, plus a certificate-only truststore for clients.
+ */
+final class Tls {
+    static final String DEFAULT_KEYSTORE = "chat-tls.p12";
+    static final String DEFAULT_PASSWORD = "changeit";
+
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+    private static final int SESSION_CACHE_SIZE = 20_000;
+    private static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    private Tls() {}
+
+    /** Server context from a PKCS12 keystore, created (self-signed) if the file does not exist. */
+    static SSLContext serverContext(Path keystore, char[] password) throws IOException {
+        if (!Files.exists(keystore)) {
+            createSelfSigned(keystore, password);
+            Log.info("Created self-signed TLS keystore " + keystore
+                    + "; clients trust it with --tls=" + trustStoreFor(keystore));
+        }
+        try {
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(load(keystore, password), password);
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(kmf.getKeyManagers(), null, null);
+            SSLSessionContext sessions = ctx.getServerSessionContext();
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            return ctx;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("TLS keystore " + keystore + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Client context trusting the certificates in a PKCS12 truststore, or the
+     * JDK's default CAs if truststore is null. Reuse it across connections:
+     * its session cache is what makes reconnects resume.
+     */
+    static SSLContext clientContext(Path truststore, char[] password) throws IOException {
+        try {
+            TrustManager[] trust = null;
+            if (truststore != null) {
+                TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                tmf.init(load(truststore, password));
+                trust = tmf.getTrustManagers();
+            }
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(null, trust, null);
+            ctx.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            return ctx;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("TLS truststore " + truststore + ": " + e.getMessage(), e);
+        }
+    }
+
+    static ServerSocket serverSocket(SSLContext ctx, int port) throws IOException {
+        return serverSocket(ctx, port, null);
+    }
+
+    /** Listening only on bind (all addresses if null). */
+    static ServerSocket serverSocket(SSLContext ctx, int port, InetAddress bind) throws IOException {
+        SSLServerSocket ss = (SSLServerSocket) ctx.getServerSocketFactory().createServerSocket(port, 64, bind);
+        ss.setSSLParameters(serverParameters(ctx));
+        return ss;
+    }
+
+    static SSLEngine serverEngine(SSLContext ctx) {
+        SSLEngine engine = ctx.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setSSLParameters(serverParameters(ctx));
+        return engine;
+    }
+
+    /** Client socket; host and port key the session cache, so use the same ones to resume. */
+    static Socket clientSocket(SSLContext ctx, String host, int port) throws IOException {
+        SSLSocket socket = (SSLSocket) ctx.getSocketFactory().createSocket(host, port);
+        SSLParameters params = ctx.getDefaultSSLParameters();
+        params.setProtocols(PROTOCOLS);
+        params.setEndpointIdentificationAlgorithm("HTTPS"); // certificate must name the host
+        socket.setSSLParameters(params);
+        return socket;
+    }
+
+    /** "chat-tls.p12" -> "chat-tls-trust.p12" */
+    static Path trustStoreFor(Path keystore) {
+        String name = keystore.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String trust = dot < 0 ? name + "-trust" : name.substring(0, dot) + "-trust" + name.substring(dot);
+        return keystore.resolveSibling(trust);
+    }
+
+    private static SSLParameters serverParameters(SSLContext ctx) {
+        SSLParameters params = ctx.getDefaultSSLParameters();
+        params.setProtocols(PROTOCOLS);
+        return params;
+    }
+
+    private static KeyStore load(Path file, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(file)) {
+            ks.load(in, password);
+        }
+        return ks;
+    }
+
+    /** Generate a P-256 key and self-signed localhost certificate, and a truststore holding just the certificate. */
+    private static void createSelfSigned(Path keystore, char[] password) throws IOException {
+        String keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        String pw = new String(password);
+        Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "chat",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-sigalg", "SHA256withECDSA",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "3650",
+                "-storetype", "PKCS12", "-keystore", keystore.toString(), "-storepass", pw, "-keypass", pw)
+                .redirectErrorStream(true)
+                .start();
+        try {
+            String output = new String(p.getInputStream().readAllBytes());
+            if (!p.waitFor(60, TimeUnit.SECONDS) || p.exitValue() != 0) {
+                throw new IOException("keytool failed: " + output.trim());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("keytool interrupted");
+        }
+        try {
+            Certificate cert = load(keystore, password).getCertificate("chat");
+            KeyStore trust = KeyStore.getInstance("PKCS12");
+            trust.load(null, null);
+            trust.setCertificateEntry("chat", cert);
+            try (OutputStream out = Files.newOutputStream(trustStoreFor(keystore))) {
+                trust.store(out, password);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("writing truststore: " + e.getMessage(), e);
+        }
+    }
+
+    // ---------------- non-blocking engine ----------------
+
+    /**
+     * One connection's SSLEngine driven over a non-blocking channel by its
+     * event loop. Ciphertext passes through two scratch buffers owned by the
+     * loop (scratchSize each); only a partial record received, or ciphertext
+     * the socket would not take, is copied out and kept per connection, like
+     * NioConnection's own partial frames. Delegated tasks run inline.
+     */
+    static final class Engine {
+        private static final ByteBuffer[] NO_DATA = {ByteBuffer.allocate(0)};
+
+        private final SSLEngine engine;
+        private ByteBuffer inLeft;     // received, not yet unwrapped (read mode); null if none
+        private ByteBuffer outLeft;    // wrapped, not yet written (read mode); null if none
+        private boolean moreInput;     // inLeft holds whole records that did not fit the last read
+        private boolean inboundClosed;
+
+        Engine(SSLEngine engine) {
+            this.engine = engine;
+        }
+
+        /** Size of each loop-owned scratch buffer. */
+        static int scratchSize(SSLContext ctx) {
+            return Math.max(64 * 1024, 4 * ctx.createSSLEngine().getSession().getPacketBufferSize());
+        }
+
+        /**
+         * Read from the channel and unwrap into dst (which needs room for a
+         * full record, ~16 KB). Handshake replies are written as needed.
+         * Returns plaintext bytes produced, or -1 at end of stream.
+         */
+        int read(SocketChannel ch, ByteBuffer dst, ByteBuffer in, ByteBuffer out) throws IOException {
+            in.clear();
+            if (inLeft != null) {
+                in.put(inLeft);
+                inLeft = null;
+            }
+            int n = in.hasRemaining() ? ch.read(in) : 0;
+            in.flip();
+            moreInput = false;
+            int start = dst.position();
+            try {
+                unwrap(ch, in, dst, out);
+            } finally {
+                if (in.hasRemaining()) inLeft = ByteBuffer.allocate(in.remaining()).put(in).flip();
+            }
+            int produced = dst.position() - start;
+            return produced == 0 && (n < 0 || inboundClosed) ? -1 : produced;
+        }
+
+        /** True if whole records are still buffered because dst filled up; read again without waiting. */
+        boolean hasMoreInput() {
+            return moreInput;
+        }
+
+        /**
+         * Wrap as much of srcs as the handshake state allows and write it.
+         * Returns false if ciphertext is left over; wait for OP_WRITE and call
+         * flush. Application data is not wrapped while earlier ciphertext is
+         * still unwritten, so a slow reader backs up into the outbound queue.
+         */
+        boolean write(SocketChannel ch, ByteBuffer[] srcs, int off, int len, ByteBuffer out) throws IOException {
+            boolean flushed = flush(ch);
+            out.clear();
+            while (true) {
+                SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                    continue;
+                }
+                boolean handshake = hs == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+                if (!handshake && (!flushed || hs == SSLEngineResult.HandshakeStatus.NEED_UNWRAP
+                        || !hasRemaining(srcs, off, len))) {
+                    break;
+                }
+                SSLEngineResult r = engine.wrap(srcs, off, len, out);
+                if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    send(ch, out);
+                    throw new EOFException("TLS session closed");
+                }
+                if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    flushed = send(ch, out);
+                    out.clear();
+                }
+            }
+            return send(ch, out);
+        }
+
+        /** Write leftover ciphertext. True once nothing is left. */
+        boolean flush(SocketChannel ch) throws IOException {
+            if (outLeft != null) {
+                ch.write(outLeft);
+                if (!outLeft.hasRemaining()) outLeft = null;
+            }
+            return outLeft == null;
+        }
+
+        boolean flushed() {
+            return outLeft == null;
+        }
+
+        /** Best-effort close_notify. */
+        void close(SocketChannel ch, ByteBuffer out) {
+            engine.closeOutbound();
+            try {
+                write(ch, NO_DATA, 0, 1, out);
+            } catch (IOException ignored) {
+                // closing anyway
+            }
+        }
+
+        private void unwrap(SocketChannel ch, ByteBuffer in, ByteBuffer dst, ByteBuffer out) throws IOException {
+            while (true) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        runTasks();
+                        continue;
+                    case NEED_WRAP:
+                        write(ch, NO_DATA, 0, 1, out);
+                        if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) return;
+                        continue;
+                    default:
+                        break;
+                }
+                if (!in.hasRemaining()) return;
+                SSLEngineResult r = engine.unwrap(in, dst);
+                switch (r.getStatus()) {
+                    case OK:
+                        break;
+                    case BUFFER_UNDERFLOW: // partial record; the rest has not arrived
+                        return;
+                    case BUFFER_OVERFLOW:  // dst is full; the caller drains it and reads again
+                        moreInput = true;
+                        return;
+                    case CLOSED:
+                        inboundClosed = true;
+                        return;
+                }
+            }
+        }
+
+        /** Write out's contents, or queue them behind ciphertext already waiting. True if nothing is left. */
+        private boolean send(SocketChannel ch, ByteBuffer out) throws IOException {
+            out.flip();
+            if (out.hasRemaining()) {
+                if (outLeft == null) ch.write(out);
+                if (out.hasRemaining()) {
+                    int kept = outLeft == null ? 0 : outLeft.remaining();
+                    ByteBuffer b = ByteBuffer.allocate(kept + out.remaining());
+                    if (outLeft != null) b.put(outLeft);
+                    outLeft = b.put(out).flip();
+                }
+            }
+            return outLeft == null;
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) task.run();
+        }
+
+        private static boolean hasRemaining(ByteBuffer[] srcs, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                if (srcs[i].hasRemaining()) return true;
+            }
+            return false;
+        }
+    }
+}